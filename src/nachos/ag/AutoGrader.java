@@ -198,6 +198,18 @@ public class AutoGrader {
 	privilege.tcb.authorizeDestroy(currentThread);
     }
 
+    /**
+     * Notify the autograder that the specified real-time thread missed a
+     * deadline. <tt>DeadlineScheduler</tt> calls this for each miss it
+     * records. The miss is counted in the statistics printed when Nachos
+     * halts, which the kernel cannot change directly.
+     *
+     * @param	thread	the thread that missed its deadline.
+     */
+    public void deadlineMissed(KThread thread) {
+	privilege.stats.numDeadlineMisses++;
+    }
+
     /**
      * Notify the autograder that a timer interrupt occurred and was handled by
      * software if a timer interrupt handler was installed. Called by the
@@ -236,6 +248,22 @@ public class AutoGrader {
 		   "security violation");
     }
 
+    /**
+     * Request permission to account for user ticks in bursts. When permitted,
+     * the processor only checks for due interrupts when one can actually be
+     * due, instead of after every instruction. The autograder should return
+     * <tt>false</tt> if it needs the simulated time to be exact while an
+     * instruction executes.
+     *
+     * @param	privilege	proves the authenticity of this call.
+     * @return	<tt>true</tt> if user ticks can be accounted in bursts.
+     */
+    public boolean canBatchTicks(Privilege privilege) {
+	Lib.assertTrue(privilege == this.privilege,
+		   "security violation");
+	return true;
+    }
+
     /**
      * Notify the autograder that a COFF loader is being constructed for the
      * specified file. The autograder can use this to provide its own COFF
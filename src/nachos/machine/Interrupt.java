@@ -4,9 +4,8 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
+import java.util.Comparator;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -53,7 +52,7 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+	allocate(initialCapacity);
     }
 
     /**
@@ -102,6 +101,39 @@ public final class Interrupt {
 	return oldStatus;
     }
 
+    /**
+     * Halt the processor until the next pending interrupt occurs. Simulated
+     * time advances directly to the time of the next interrupt, and is
+     * accounted as idle time, and then the handlers of all interrupts that are
+     * due are invoked. Interrupts must be disabled.
+     *
+     * <p>
+     * The kernel should only call this when no thread can run until an
+     * interrupt occurs. If no interrupt is pending, no thread can ever run
+     * again, so Nachos halts.
+     */
+    public void idle() {
+	Lib.assertTrue(disabled());
+
+	if (numPending == 0) {
+	    System.out.println("No threads ready or runnable, and no pending "
+			       + "interrupts.");
+	    Machine.halt();
+	}
+
+	Stats stats = privilege.stats;
+	long time = slotTime[heap[0]];
+
+	if (time > stats.totalTicks) {
+	    Lib.debug(dbgInt, "Idling until time = " + time);
+
+	    stats.idleTicks += time - stats.totalTicks;
+	    stats.totalTicks = time;
+	}
+
+	checkIfDue();
+    }
+
     /**
      * Tests whether interrupts are enabled.
      *
@@ -120,17 +152,47 @@ public final class Interrupt {
 	return !enabled;
     }
 
-    private void schedule(long when, String type, Runnable handler) {
+    private long schedule(long when, String type, Runnable handler) {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
 	Lib.debug(dbgInt,
 		  "Scheduling the " + type +
 		  " interrupt handler at time = " + time);
 
-	pending.add(toOccur);
+	if (numFree == 0)
+	    allocate(2*slotTime.length);
+
+	int slot = freeSlots[--numFree];
+	long id = numPendingInterruptsCreated++;
+
+	slotTime[slot] = time;
+	slotId[slot] = id;
+	slotType[slot] = type;
+	slotHandler[slot] = handler;
+
+	heap[numPending] = slot;
+	heapIndex[slot] = numPending;
+	siftUp(numPending++);
+
+	return (id << slotBits) | slot;
+    }
+
+    private boolean cancel(long handle) {
+	int slot = (int) (handle & slotMask);
+
+	// the slot may have been recycled since the handle was issued
+	if (slot >= slotTime.length || heapIndex[slot] < 0 ||
+	    slotId[slot] != (handle >>> slotBits))
+	    return false;
+
+	Lib.debug(dbgInt,
+		  "Cancelling the " + slotType[slot] +
+		  " interrupt handler at time = " + slotTime[slot]);
+
+	remove(heapIndex[slot]);
+	return true;
     }
 
     private void tick(boolean inKernelMode) {
@@ -153,6 +215,26 @@ public final class Interrupt {
 	enabled = true;
     }
 
+    private long userTicksUntilDue() {
+	// print every tick when debugging
+	if (Lib.test(dbgInt))
+	    return 0;
+
+	if (numPending == 0)
+	    return Long.MAX_VALUE;
+
+	long ticks = slotTime[heap[0]] - privilege.stats.totalTicks - 1;
+
+	return Math.max(ticks / Stats.UserTick, 0);
+    }
+
+    private void tickUser(long count) {
+	Stats stats = privilege.stats;
+
+	stats.userTicks += count * Stats.UserTick;
+	stats.totalTicks += count * Stats.UserTick;
+    }
+
     private void checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
@@ -161,27 +243,28 @@ public final class Interrupt {
 	if (Lib.test(dbgInt))
 	    print();
 
-	if (pending.isEmpty())
+	if (numPending == 0)
 	    return;
 
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (slotTime[heap[0]] > time)
 	    return;
 
 	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
+	while (numPending > 0 && slotTime[heap[0]] <= time) {
+	    int next = heap[0];
+	    String type = slotType[next];
+	    Runnable handler = slotHandler[next];
 
-	    Lib.assertTrue(next.time <= time);
+	    // the handler may reuse the slot
+	    remove(0);
 
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
+	    Lib.debug(dbgInt, "  " + type);
 			
-	    next.handler.run();
+	    handler.run();
 	}
 
 	Lib.debug(dbgInt, "  (end of list)");
@@ -192,44 +275,138 @@ public final class Interrupt {
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
-	    System.out.println("  " + toOccur.type +
-			       ", scheduled at " + toOccur.time);
+	// list the interrupts in the order they will occur
+	Integer[] slots = new Integer[numPending];
+	for (int i=0; i<numPending; i++)
+	    slots[i] = heap[i];
+
+	Arrays.sort(slots, new Comparator<Integer>() {
+		public int compare(Integer slot1, Integer slot2) {
+		    if (slot1.equals(slot2))
+			return 0;
+
+		    return before(slot1, slot2) ? -1 : 1;
+		}
+	    });
+
+	for (int i=0; i<slots.length; i++) {
+	    System.out.println("  " + slotType[slots[i]] +
+			       ", scheduled at " + slotTime[slots[i]]);
 	}
 
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
+    /**
+     * Test whether the interrupt in one slot occurs before the interrupt in
+     * another. Interrupts are ordered by time, and interrupts scheduled for
+     * the same time occur in the order they were scheduled.
+     */
+    private boolean before(int slot1, int slot2) {
+	if (slotTime[slot1] != slotTime[slot2])
+	    return slotTime[slot1] < slotTime[slot2];
+	else
+	    return slotId[slot1] < slotId[slot2];
+    }
+
+    private void siftUp(int i) {
+	int slot = heap[i];
+
+	while (i > 0) {
+	    int parent = (i-1)/2;
+	    if (!before(slot, heap[parent]))
+		break;
+
+	    heap[i] = heap[parent];
+	    heapIndex[heap[i]] = i;
+	    i = parent;
+	}
+
+	heap[i] = slot;
+	heapIndex[slot] = i;
+    }
+
+    private void siftDown(int i) {
+	int slot = heap[i];
+
+	while (true) {
+	    int child = 2*i+1;
+	    if (child >= numPending)
+		break;
+
+	    if (child+1 < numPending && before(heap[child+1], heap[child]))
+		child++;
+
+	    if (!before(heap[child], slot))
+		break;
+
+	    heap[i] = heap[child];
+	    heapIndex[heap[i]] = i;
+	    i = child;
 	}
 
-	public int compareTo(Object o) {
-	    PendingInterrupt toOccur = (PendingInterrupt) o;
+	heap[i] = slot;
+	heapIndex[slot] = i;
+    }
 
-	    // can't return 0 for unequal objects, so check all fields
-	    if (time < toOccur.time)
-		return -1;
-	    else if (time > toOccur.time)
-		return 1;
-	    else if (id < toOccur.id)
-		return -1;
-	    else if (id > toOccur.id)
-		return 1;
-	    else
-		return 0;
+    /**
+     * Remove the interrupt at the specified position in the heap, and return
+     * its slot to the free list.
+     */
+    private void remove(int i) {
+	int slot = heap[i];
+
+	numPending--;
+	if (i < numPending) {
+	    int moved = heap[numPending];
+	    heap[i] = moved;
+	    heapIndex[moved] = i;
+
+	    siftDown(i);
+	    if (heapIndex[moved] == i)
+		siftUp(i);
 	}
 
-	long time;
-	String type;
-	Runnable handler;
+	heapIndex[slot] = -1;
+	slotType[slot] = null;
+	slotHandler[slot] = null;
 
-	private long id;
+	freeSlots[numFree++] = slot;
+    }
+
+    /**
+     * Grow the slot pool to the specified capacity. Slots are never released,
+     * so after warming up, scheduling an interrupt allocates nothing.
+     */
+    private void allocate(int capacity) {
+	Lib.assertTrue(capacity <= slotMask+1);
+
+	int oldCapacity = (slotTime == null) ? 0 : slotTime.length;
+
+	if (oldCapacity == 0) {
+	    slotTime = new long[capacity];
+	    slotId = new long[capacity];
+	    slotType = new String[capacity];
+	    slotHandler = new Runnable[capacity];
+	    heap = new int[capacity];
+	    heapIndex = new int[capacity];
+	    freeSlots = new int[capacity];
+	}
+	else {
+	    slotTime = Arrays.copyOf(slotTime, capacity);
+	    slotId = Arrays.copyOf(slotId, capacity);
+	    slotType = Arrays.copyOf(slotType, capacity);
+	    slotHandler = Arrays.copyOf(slotHandler, capacity);
+	    heap = Arrays.copyOf(heap, capacity);
+	    heapIndex = Arrays.copyOf(heapIndex, capacity);
+	    freeSlots = Arrays.copyOf(freeSlots, capacity);
+	}
+
+	// hand out low slots first
+	for (int slot=capacity-1; slot>=oldCapacity; slot--) {
+	    heapIndex[slot] = -1;
+	    freeSlots[numFree++] = slot;
+	}
     }
     
     private long numPendingInterruptsCreated = 0;
@@ -237,17 +414,44 @@ public final class Interrupt {
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+
+    /*
+     * Pending interrupts live in a pool of slots, stored as parallel arrays.
+     * heap[0..numPending-1] is a binary min-heap of slot numbers, and
+     * heapIndex maps each slot back to its position in the heap (or -1 if the
+     * slot is free).
+     */
+    private long[] slotTime, slotId;
+    private String[] slotType;
+    private Runnable[] slotHandler;
+    private int[] heap, heapIndex, freeSlots;
+    private int numPending = 0, numFree = 0;
+
+    private static final int initialCapacity = 16;
+    private static final int slotBits = 24;
+    private static final long slotMask = (1L << slotBits) - 1;
 
     private static final char dbgInt = 'i';
 
     private class InterruptPrivilege implements Privilege.InterruptPrivilege {
-	public void schedule(long when, String type, Runnable handler) {
-	    Interrupt.this.schedule(when, type, handler);
+	public long schedule(long when, String type, Runnable handler) {
+	    return Interrupt.this.schedule(when, type, handler);
+	}
+
+	public boolean cancel(long handle) {
+	    return Interrupt.this.cancel(handle);
 	}
 
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public long userTicksUntilDue() {
+	    return Interrupt.this.userTicksUntilDue();
+	}
+
+	public void tickUser(long count) {
+	    Interrupt.this.tickUser(count);
+	}
     }
 }
@@ -100,6 +100,28 @@ public final class Machine {
 	terminate();
     }
 
+    /**
+     * Record that a page reference seen by the kernel found the page in
+     * physical memory (<i>hit</i> is <tt>true</tt>) or had to bring it in, to
+     * be reported when Nachos halts.
+     *
+     * @param	hit	<tt>true</tt> if the page was in physical memory.
+     */
+    public static void pageReferenced(boolean hit) {
+	if (hit)
+	    stats.numPageHits++;
+	else
+	    stats.numPageMisses++;
+    }
+
+    /**
+     * Record that a page was evicted from physical memory, to be reported
+     * when Nachos halts.
+     */
+    public static void pageEvicted() {
+	stats.numPageEvictions++;
+    }
+
     /**
      * Return an array containing all command line arguments.
      *
@@ -42,10 +42,17 @@ public final class Processor {
 	
 	this.numPhysPages = numPhysPages;
 
+	translating = Config.getBoolean("Processor.translate", false);
+	translationThreshold =
+	    Config.getInteger("Processor.translationThreshold", 16);
+
 	for (int i=0; i<numUserRegisters; i++)
 	    registers[i] = 0;
 
 	mainMemory = new byte[pageSize * numPhysPages];
+	decodedPages = new DecodedInstruction[numPhysPages][];
+	blockPages = new Block[numPhysPages][];
+	blockCounts = new int[numPhysPages][];
 
 	if (usingTLB) {
 	    translations = new TranslationEntry[tlbSize];
@@ -71,6 +78,28 @@ public final class Processor {
 	this.exceptionHandler = exceptionHandler;
     }
 
+    /**
+     * Set the TLB refill handler, called on a TLB miss before the miss is
+     * raised as an exception. This processor has a software-managed TLB.
+     *
+     * <p>
+     * The refill handler is called in the middle of an instruction, with the
+     * CPU BadVAddr register set to the address that missed. It may load the
+     * missing translation with <tt>writeTLBEntry()</tt>, in which case the
+     * instruction continues; otherwise, <tt>exceptionTLBMiss</tt> is raised
+     * as usual. It must not block, enable interrupts, or change any other
+     * register.
+     *
+     * @param	tlbRefillHandler	the kernel TLB refill handler, or
+     *					<tt>null</tt> to raise every miss as
+     *					an exception.
+     */
+    public void setTLBRefillHandler(Runnable tlbRefillHandler) {
+	Lib.assertTrue(usingTLB);
+
+	this.tlbRefillHandler = tlbRefillHandler;
+    }
+
     /**
      * Get the exception handler, set by the last call to
      * <tt>setExceptionHandler()</tt>.
@@ -92,19 +121,67 @@ public final class Processor {
 	Machine.autoGrader().runProcessor(privilege);
 
 	Instruction inst = new Instruction();
-	
+
+	// translated blocks bypass the disassembler, so only use them quietly
+	BlockTranslator translator = null;
+	if (translating && !Lib.test(dbgProcessor) &&
+	    !Lib.test(dbgDisassemble) && !Lib.test(dbgFullDisassemble))
+	    translator = new BlockTranslator(inst);
+
+	batching = Machine.autoGrader().canBatchTicks(privilege);
+	burstTicks = 0;
+
 	while (true) {
 	    try {
-		inst.run();
+		if (translator != null)
+		    translator.run();
+		else
+		    inst.run();
 	    }
 	    catch (MipsException e) {
+		// the kernel must see the correct time
+		endBurst();
 		e.handle();
 	    }
 
-	    privilege.interrupt.tick(false);
+	    tick();
 	}
     }
 
+    /**
+     * Advance the simulated time after executing a user instruction. While
+     * no interrupt can become due, ticks are only counted, and they are added
+     * to <tt>Stats</tt> in bulk when the burst ends, so interrupts are still
+     * delivered after exactly the same instructions as if every instruction
+     * had been ticked separately.
+     */
+    private void tick() {
+	if (burstTicks > 0) {
+	    burstTicks--;
+	    deferredTicks++;
+	    return;
+	}
+
+	endBurst();
+	privilege.interrupt.tick(false);
+
+	// this thread may have been switched out and back in
+	if (batching)
+	    burstTicks = privilege.interrupt.userTicksUntilDue();
+    }
+
+    /**
+     * Account for the ticks deferred by the current burst, and end it. This
+     * must be done before any kernel code runs.
+     */
+    private void endBurst() {
+	if (deferredTicks > 0)
+	    privilege.interrupt.tickUser(deferredTicks);
+
+	deferredTicks = 0;
+	burstTicks = 0;
+    }
+
     /**
      * Read and return the contents of the specified CPU register.
      *
@@ -324,16 +401,19 @@ public final class Processor {
 	}
 	// else, look through all TLB entries for matching vpn
 	else {
-	    for (int i=0; i<tlbSize; i++) {
-		if (translations[i].valid && translations[i].vpn == vpn) {
-		    entry = translations[i];
-		    break;
-		}
-	    }
+	    entry = lookupTLB(vpn);
 	    if (entry == null) {
 		privilege.stats.numTLBMisses++;
 		Lib.debug(dbgProcessor, "\t\tTLB miss");
-		throw new MipsException(exceptionTLBMiss, vaddr);
+
+		if (tlbRefillHandler != null) {
+		    writeRegister(regBadVAddr, vaddr);
+		    tlbRefillHandler.run();
+		    entry = lookupTLB(vpn);
+		}
+
+		if (entry == null)
+		    throw new MipsException(exceptionTLBMiss, vaddr);
 	    }
 	}
 
@@ -362,6 +442,19 @@ public final class Processor {
 	return paddr;
     }
 
+    /**
+     * Return the valid TLB entry for the specified virtual page, or
+     * <tt>null</tt> if there is none.
+     */
+    private TranslationEntry lookupTLB(int vpn) {
+	for (int i=0; i<tlbSize; i++) {
+	    if (translations[i].valid && translations[i].vpn == vpn)
+		return translations[i];
+	}
+
+	return null;
+    }
+
     /**
      * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
      * and return the result.
@@ -405,9 +498,90 @@ public final class Processor {
 			       + Lib.toHexString(value, size*2));
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
-	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+
+	int paddr = translate(vaddr, size, true);
+
+	invalidateDecoded(paddr);
+
+	Lib.bytesFromInt(mainMemory, paddr, size, value);
+    }
+
+    /**
+     * Return the predecoded form of the instruction stored at the specified
+     * physical address, decoding it and caching the result if necessary.
+     *
+     * <p>
+     * Each record remembers the raw instruction word it was decoded from, so
+     * a record made stale by the kernel writing physical memory directly
+     * (through <tt>getMemory()</tt>) is detected and replaced here.
+     *
+     * @param	paddr	the word-aligned physical address of the instruction.
+     * @param	value	the raw instruction word at <i>paddr</i>.
+     * @return		the predecoded instruction.
+     */
+    private DecodedInstruction lookupDecoded(int paddr, int value) {
+	int ppn = paddr / pageSize;
+
+	DecodedInstruction[] page = decodedPages[ppn];
+	if (page == null) {
+	    page = new DecodedInstruction[pageSize/4];
+	    decodedPages[ppn] = page;
+	}
+
+	int slot = (paddr % pageSize) >> 2;
+
+	DecodedInstruction decoded = page[slot];
+	if (decoded == null || decoded.value != value) {
+	    decoded = new DecodedInstruction(value);
+	    page[slot] = decoded;
+	}
+
+	return decoded;
+    }
+
+    /**
+     * Discard the predecoded instruction, if any, that contains the specified
+     * physical address.
+     *
+     * @param	paddr	the physical address being written.
+     */
+    private void invalidateDecoded(int paddr) {
+	DecodedInstruction[] page = decodedPages[paddr / pageSize];
+	if (page != null)
+	    page[(paddr % pageSize) >> 2] = null;
+    }
+
+    /**
+     * Discard all predecoded instructions in the specified physical page.
+     * Called whenever the page is overwritten as a whole, for example by
+     * <tt>CoffSection.loadPage()</tt>.
+     *
+     * @param	ppn	the physical page being overwritten.
+     */
+    void invalidateDecodedPage(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+	decodedPages[ppn] = null;
+	invalidateBlocks(ppn);
+    }
+
+    /**
+     * Discard all translated blocks that start in the specified physical
+     * page, and forget how often they were entered.
+     *
+     * @param	ppn	the physical page whose blocks are stale.
+     */
+    private void invalidateBlocks(int ppn) {
+	Block[] page = blockPages[ppn];
+	if (page != null) {
+	    for (int i=0; i<page.length; i++) {
+		if (page[i] != null)
+		    page[i].valid = false;
+	    }
+	}
+
+	blockPages[ppn] = null;
+	blockCounts[ppn] = null;
     }
 
     /**
@@ -555,13 +729,43 @@ public final class Processor {
     private int numPhysPages;
     /** Main memory for user programs. */
     private byte[] mainMemory;
+    /**
+     * Predecoded instructions, indexed by physical page number and then by
+     * word offset within the page. A page's array is allocated the first time
+     * an instruction is fetched from it.
+     */
+    private DecodedInstruction[][] decodedPages;
+
+    /** <tt>true</tt> if hot code should be run as translated blocks. */
+    private boolean translating;
+    /** The number of times a block is entered before it is translated. */
+    private int translationThreshold;
+
+    /**
+     * <tt>true</tt> if user ticks may be accounted in bursts, rather than
+     * checking for interrupts after every instruction.
+     */
+    private boolean batching = false;
+    /** The number of user ticks left before the next interrupt check. */
+    private long burstTicks = 0;
+    /** The number of user ticks not yet added to <tt>Stats</tt>. */
+    private long deferredTicks = 0;
+    /**
+     * Translated blocks, indexed by the physical page number and then by the
+     * word offset of their first instruction.
+     */
+    private Block[][] blockPages;
+    /** How often each not yet translated block has been entered. */
+    private int[][] blockCounts;
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
+    private Runnable tlbRefillHandler = null;
 
     private static final char dbgProcessor = 'p';
     private static final char dbgDisassemble = 'm';
     private static final char dbgFullDisassemble = 'M';
+    private static final char dbgTranslate = 'b';
 
     private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 	public void flushPipe() {
@@ -583,6 +787,14 @@ public final class Processor {
 	    this.badVAddr = badVAddr;
 	}
 
+	/**
+	 * Skip recording the stack trace, which is never used and costs more
+	 * than the rest of raising the exception.
+	 */
+	public Throwable fillInStackTrace() {
+	    return this;
+	}
+
 	public void handle() {
 	    writeRegister(regCause, cause);
 
@@ -616,6 +828,22 @@ public final class Processor {
 	    writeBack();
 	}	
 
+	/**
+	 * Execute an instruction that has already been fetched from the
+	 * specified physical address.
+	 *
+	 * @param	paddr	the physical address of the instruction.
+	 * @param	value	the instruction word.
+	 */
+	public void run(int paddr, int value) throws MipsException {
+	    this.paddr = paddr;
+	    this.value = value;
+
+	    decode();
+	    execute();
+	    writeBack();
+	}
+
 	private boolean test(int flag) {
 	    return Lib.test(flag, flags);
 	}
@@ -626,78 +854,51 @@ public final class Processor {
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
-	}
-	
-	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
-
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
+	    paddr = translate(registers[regPC], 4, false);
+	    value = Lib.bytesToInt(mainMemory, paddr, 4);
 
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\t\tinstruction=0x" +
+				   Lib.toHexString(value));
+	}
 
-	    mask = 0xFFFFFFFF;	
+	private void decode() {
+	    // the fields that depend only on the instruction word are cached
+	    DecodedInstruction decoded = lookupDecoded(paddr, value);
+
+	    op = decoded.op;
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    rd = decoded.rd;
+	    sh = decoded.sh;
+	    func = decoded.func;
+	    target = decoded.target;
+	    imm = decoded.imm;
+
+	    operation = decoded.operation;
+	    name = decoded.name;
+	    format = decoded.format;
+	    flags = decoded.flags;
+
+	    size = decoded.size;
+	    dstReg = decoded.dstReg;
+
+	    mask = 0xFFFFFFFF;
 	    branch = true;
-	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
 	    else if (format == Mips.IFMT)
-		jtarget = registers[regNextPC] + (imm<<2);
+		jtarget = registers[regNextPC] + decoded.branchOffset;
 	    else if (format == Mips.JFMT)
 		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -1052,7 +1253,7 @@ public final class Processor {
 	}
     
 	// state used to execute a single instruction
-	int value, op, rs, rt, rd, sh, func, target, imm;
+	int paddr, value, op, rs, rt, rd, sh, func, target, imm;
 	int operation, format, flags;
 	String name;
 
@@ -1063,6 +1264,563 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * The part of a decoded instruction that depends only on the instruction
+     * word, and not on any register. Records are cached by physical address
+     * in <tt>decodedPages</tt>, so a loop only pays for decoding once.
+     */
+    private static class DecodedInstruction {
+	DecodedInstruction(int value) {
+	    this.value = value;
+
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+
+	    int signedImm = Lib.extend(value, 0, 16);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // branch offsets always use the sign-extended immediate
+	    branchOffset = signedImm<<2;
+
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags))
+		imm = signedImm & 0xFFFF;
+	    else
+		imm = signedImm;
+	}
+
+	/** The raw instruction word this record was decoded from. */
+	final int value;
+	final int op, rs, rt, rd, sh, func, target, imm;
+	final int operation, format, flags;
+	final String name;
+	final int size, dstReg, branchOffset;
+    }
+
+    /**
+     * Runs user code as translated basic blocks. A block is a run of
+     * instructions within one physical page, ending with a branch or jump and
+     * its delay slot, with an instruction that can only trap, or at the end of
+     * the page. Blocks are only translated once they have been entered
+     * <tt>translationThreshold</tt> times; until then, and whenever a
+     * translated block no longer matches memory, the interpreter is used.
+     *
+     * <p>
+     * Each call to <tt>run()</tt> behaves exactly like a sequence of calls to
+     * <tt>Instruction.run()</tt>. The caller ticks the clock after the last
+     * instruction, and <tt>run()</tt> ticks it between instructions, so
+     * interrupts are delivered at the same instruction boundaries as in the
+     * interpreter. Every instruction is still fetched through
+     * <tt>translate()</tt>, so page faults, TLB misses and used bits are also
+     * unchanged.
+     */
+    private class BlockTranslator {
+	BlockTranslator(Instruction inst) {
+	    this.inst = inst;
+	}
+
+	void run() throws MipsException {
+	    int vaddr = registers[regPC];
+	    int paddr = translate(vaddr, 4, false);
+	    int value = Lib.bytesToInt(mainMemory, paddr, 4);
+
+	    Block block = null;
+	    if (previous != null && previous.valid)
+		block = previous.successor(paddr);
+	    if (block == null) {
+		block = lookupBlock(paddr);
+		if (block != null && previous != null)
+		    previous.chain(block);
+	    }
+	    previous = block;
+
+	    if (block == null || !block.ops[0].matches(paddr, value)) {
+		if (block != null)
+		    invalidateBlocks(paddr / pageSize);
+
+		inst.run(paddr, value);
+		return;
+	    }
+
+	    TranslatedInstruction[] ops = block.ops;
+
+	    ops[0].run();
+
+	    for (int i=1; i<ops.length; i++) {
+		tick();
+
+		// an interrupt handler may have redirected the processor
+		vaddr += 4;
+		if (registers[regPC] != vaddr) {
+		    inst.run();
+		    return;
+		}
+
+		paddr = translate(vaddr, 4, false);
+		value = Lib.bytesToInt(mainMemory, paddr, 4);
+
+		if (!ops[i].matches(paddr, value)) {
+		    if (ops[i].paddr == paddr)
+			invalidateBlocks(paddr / pageSize);
+
+		    inst.run(paddr, value);
+		    return;
+		}
+
+		ops[i].run();
+	    }
+	}
+
+	/**
+	 * Return the translated block starting at the specified physical
+	 * address, translating it if it has become hot.
+	 *
+	 * @param	paddr	the physical address of the first instruction.
+	 * @return	the block, or <tt>null</tt> if it is not hot yet.
+	 */
+	private Block lookupBlock(int paddr) {
+	    int ppn = paddr / pageSize;
+	    int slot = (paddr % pageSize) >> 2;
+
+	    Block[] page = blockPages[ppn];
+	    if (page != null && page[slot] != null)
+		return page[slot];
+
+	    int[] counts = blockCounts[ppn];
+	    if (counts == null) {
+		counts = new int[pageSize/4];
+		blockCounts[ppn] = counts;
+	    }
+
+	    if (++counts[slot] < translationThreshold)
+		return null;
+
+	    if (page == null) {
+		page = new Block[pageSize/4];
+		blockPages[ppn] = page;
+	    }
+
+	    page[slot] = translateBlock(paddr);
+	    return page[slot];
+	}
+
+	private Block translateBlock(int paddr) {
+	    int end = (paddr / pageSize + 1) * pageSize;
+	    int length = 0;
+
+	    TranslatedInstruction[] ops = new TranslatedInstruction[maxBlockLength];
+
+	    while (paddr < end && length < maxBlockLength) {
+		DecodedInstruction decoded =
+		    lookupDecoded(paddr, Lib.bytesToInt(mainMemory, paddr, 4));
+
+		ops[length++] = translateInstruction(paddr, decoded);
+		paddr += 4;
+
+		if (Lib.test(Mips.BRANCH, decoded.flags)) {
+		    // the delay slot belongs to this block, if it's on the page
+		    if (paddr < end) {
+			decoded = lookupDecoded(paddr,
+						Lib.bytesToInt(mainMemory,
+							       paddr, 4));
+			if (!Lib.test(Mips.BRANCH, decoded.flags))
+			    ops[length++] = translateInstruction(paddr,
+								 decoded);
+		    }
+		    break;
+		}
+
+		if (ops[length-1] instanceof InterpretedInstruction)
+		    break;
+	    }
+
+	    TranslatedInstruction[] result = new TranslatedInstruction[length];
+	    System.arraycopy(ops, 0, result, 0, length);
+
+	    Lib.debug(dbgTranslate, "translated block at paddr=0x" +
+		      Lib.toHexString(result[0].paddr) + " (" + length +
+		      " instructions)");
+
+	    return new Block(result);
+	}
+
+	private TranslatedInstruction translateInstruction(int paddr,
+							   DecodedInstruction decoded) {
+	    switch (decoded.operation) {
+	    case Mips.ADD:
+	    case Mips.SUB:
+	    case Mips.SLL:
+	    case Mips.SRA:
+	    case Mips.SRL:
+	    case Mips.SLT:
+	    case Mips.AND:
+	    case Mips.OR:
+	    case Mips.NOR:
+	    case Mips.XOR:
+	    case Mips.LUI:
+		return new AluInstruction(paddr, decoded);
+
+	    case Mips.BEQ:
+	    case Mips.BNE:
+	    case Mips.BLEZ:
+	    case Mips.BGTZ:
+	    case Mips.BLTZ:
+	    case Mips.BGEZ:
+	    case Mips.JUMP:
+		return new BranchInstruction(paddr, decoded);
+
+	    case Mips.LOAD:
+		return new LoadInstruction(paddr, decoded);
+
+	    case Mips.STORE:
+		return new StoreInstruction(paddr, decoded);
+
+	    case Mips.SYSCALL:
+	    case Mips.UNIMPL:
+	    case Mips.INVALID:
+		return new InterpretedInstruction(paddr, decoded);
+
+	    default:
+		// rare instructions are not worth specializing
+		return new ResumableInstruction(paddr, decoded);
+	    }
+	}
+
+	private Instruction inst;
+	private Block previous = null;
+    }
+
+    /**
+     * A basic block of translated instructions, along with the blocks that
+     * were most recently entered after it.
+     */
+    private static class Block {
+	Block(TranslatedInstruction[] ops) {
+	    this.ops = ops;
+	}
+
+	/**
+	 * Return the chained successor starting at the specified physical
+	 * address, if there is one.
+	 */
+	Block successor(int paddr) {
+	    if (successor0 != null && successor0.valid &&
+		successor0.ops[0].paddr == paddr)
+		return successor0;
+	    if (successor1 != null && successor1.valid &&
+		successor1.ops[0].paddr == paddr)
+		return successor1;
+	    return null;
+	}
+
+	/**
+	 * Chain the specified block to this one, replacing the least recently
+	 * chained successor. A conditional branch usually alternates between
+	 * two successors, so two are kept.
+	 */
+	void chain(Block next) {
+	    if (successor0 == next || successor1 == next)
+		return;
+
+	    successor1 = successor0;
+	    successor0 = next;
+	}
+
+	final TranslatedInstruction[] ops;
+	boolean valid = true;
+
+	private Block successor0 = null, successor1 = null;
+    }
+
+    /**
+     * A single translated instruction. Subclasses implement one family of
+     * instructions without consulting the flags table at run time, but must
+     * read their operands, complete the pending delayed load, write their
+     * result, and advance the PC in the same order as
+     * <tt>Instruction.writeBack()</tt>.
+     */
+    private abstract class TranslatedInstruction {
+	TranslatedInstruction(int paddr, DecodedInstruction decoded) {
+	    this.paddr = paddr;
+	    this.decoded = decoded;
+
+	    operation = decoded.operation;
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    dstReg = decoded.dstReg;
+	    imm = decoded.imm;
+	}
+
+	/**
+	 * Test whether this is a translation of the specified instruction
+	 * word at the specified physical address.
+	 */
+	final boolean matches(int paddr, int value) {
+	    return this.paddr == paddr && decoded.value == value;
+	}
+
+	abstract void run() throws MipsException;
+
+	/**
+	 * Complete the pending delayed load, write the result of this
+	 * instruction, and move on to the next instruction.
+	 */
+	final void writeBack(int dst) {
+	    finishLoad();
+
+	    if (dstReg > 0)
+		registers[dstReg] = dst;
+
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	final int paddr;
+	final DecodedInstruction decoded;
+	final int operation, rs, rt, dstReg, imm;
+    }
+
+    private class AluInstruction extends TranslatedInstruction {
+	AluInstruction(int paddr, DecodedInstruction decoded) {
+	    super(paddr, decoded);
+
+	    sh = decoded.sh;
+	    shiftAmount = Lib.test(Mips.SRC1SH, decoded.flags);
+	    immediate = Lib.test(Mips.SRC2IMM, decoded.flags);
+	    unsigned = Lib.test(Mips.UNSIGNED, decoded.flags);
+	    overflow = Lib.test(Mips.OVERFLOW, decoded.flags);
+	}
+
+	void run() throws MipsException {
+	    long src1 = shiftAmount ? sh : registers[rs];
+	    long src2 = immediate ? imm : registers[rt];
+
+	    if (unsigned) {
+		src1 &= 0xFFFFFFFFL;
+		src2 &= 0xFFFFFFFFL;
+	    }
+
+	    long dst;
+
+	    switch (operation) {
+	    case Mips.ADD:
+		dst = src1 + src2;
+		break;
+	    case Mips.SUB:
+		dst = src1 - src2;
+		break;
+	    case Mips.SLL:
+		dst = src2 << (src1&0x1F);
+		break;
+	    case Mips.SRA:
+		dst = src2 >> (src1&0x1F);
+		break;
+	    case Mips.SRL:
+		dst = src2 >>> (src1&0x1F);
+		break;
+	    case Mips.SLT:
+		dst = (src1<src2) ? 1 : 0;
+		break;
+	    case Mips.AND:
+		dst = src1 & src2;
+		break;
+	    case Mips.OR:
+		dst = src1 | src2;
+		break;
+	    case Mips.NOR:
+		dst = ~(src1 | src2);
+		break;
+	    case Mips.XOR:
+		dst = src1 ^ src2;
+		break;
+	    case Mips.LUI:
+		dst = imm << 16;
+		break;
+	    default:
+		Lib.assertNotReached();
+		return;
+	    }
+
+	    // same test as Instruction.writeBack()
+	    if (overflow && Lib.test(dst,31) != Lib.test(dst,32))
+		throw new MipsException(exceptionOverflow);
+
+	    writeBack((int) dst);
+	}
+
+	private final int sh;
+	private final boolean shiftAmount, immediate, unsigned, overflow;
+    }
+
+    private class BranchInstruction extends TranslatedInstruction {
+	BranchInstruction(int paddr, DecodedInstruction decoded) {
+	    super(paddr, decoded);
+
+	    format = decoded.format;
+	    jumpTarget = decoded.target<<2;
+	    branchOffset = decoded.branchOffset;
+	    link = Lib.test(Mips.LINK, decoded.flags);
+	}
+
+	void run() {
+	    int nextPC = registers[regNextPC]+4;
+	    int src1 = registers[rs];
+
+	    boolean branch;
+
+	    switch (operation) {
+	    case Mips.BEQ:
+		branch = (src1 == registers[rt]);
+		break;
+	    case Mips.BNE:
+		branch = (src1 != registers[rt]);
+		break;
+	    case Mips.BGEZ:
+		branch = (src1 >= 0);
+		break;
+	    case Mips.BGTZ:
+		branch = (src1 > 0);
+		break;
+	    case Mips.BLEZ:
+		branch = (src1 <= 0);
+		break;
+	    case Mips.BLTZ:
+		branch = (src1 < 0);
+		break;
+	    default:
+		branch = true;
+		break;
+	    }
+
+	    int jtarget;
+	    if (format == Mips.RFMT)
+		jtarget = src1;
+	    else if (format == Mips.IFMT)
+		jtarget = registers[regNextPC] + branchOffset;
+	    else
+		jtarget = (registers[regNextPC]&0xF0000000) | jumpTarget;
+
+	    finishLoad();
+
+	    if (link && dstReg != 0)
+		registers[dstReg] = nextPC;
+
+	    advancePC(branch ? jtarget : nextPC);
+	}
+
+	private final int format, jumpTarget, branchOffset;
+	private final boolean link;
+    }
+
+    private class LoadInstruction extends TranslatedInstruction {
+	LoadInstruction(int paddr, DecodedInstruction decoded) {
+	    super(paddr, decoded);
+
+	    size = decoded.size;
+	    unsigned = Lib.test(Mips.UNSIGNED, decoded.flags);
+	}
+
+	void run() throws MipsException {
+	    int value = readMem(registers[rs] + imm, size);
+
+	    if (!unsigned)
+		value = Lib.extend(value, 0, size*8);
+
+	    delayedLoad(dstReg, value, 0xFFFFFFFF);
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	private final int size;
+	private final boolean unsigned;
+    }
+
+    private class StoreInstruction extends TranslatedInstruction {
+	StoreInstruction(int paddr, DecodedInstruction decoded) {
+	    super(paddr, decoded);
+
+	    size = decoded.size;
+	}
+
+	void run() throws MipsException {
+	    writeMem(registers[rs] + imm, size, registers[rt]);
+
+	    finishLoad();
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	private final int size;
+    }
+
+    /**
+     * An instruction that is run by the interpreter, but that does not end
+     * its block.
+     */
+    private class ResumableInstruction extends TranslatedInstruction {
+	ResumableInstruction(int paddr, DecodedInstruction decoded) {
+	    super(paddr, decoded);
+	}
+
+	void run() throws MipsException {
+	    interpreter.run(paddr, decoded.value);
+	}
+
+	private final Instruction interpreter = new Instruction();
+    }
+
+    /**
+     * An instruction that is run by the interpreter, and always ends its
+     * block because it traps.
+     */
+    private class InterpretedInstruction extends ResumableInstruction {
+	InterpretedInstruction(int paddr, DecodedInstruction decoded) {
+	    super(paddr, decoded);
+	}
+    }
+
+    /** The longest basic block that will be translated. */
+    private static final int maxBlockLength = 64;
+
     private static class Mips {
 	Mips() {
 	}
@@ -20,15 +20,20 @@ public final class Stats {
     public void print() {
 	System.out.println("Ticks: total " + totalTicks
 			   + ", kernel " + kernelTicks
-			   + ", user " + userTicks);
+			   + ", user " + userTicks
+			   + ", idle " + idleTicks);
 	System.out.println("Disk I/O: reads " + numDiskReads
 			   + ", writes " + numDiskWrites);
 	System.out.println("Console I/O: reads " + numConsoleReads
 			   + ", writes " + numConsoleWrites);
 	System.out.println("Paging: page faults " + numPageFaults
-			   + ", TLB misses " + numTLBMisses);
+			   + ", TLB misses " + numTLBMisses
+			   + ", page hits " + numPageHits
+			   + ", page misses " + numPageMisses
+			   + ", evictions " + numPageEvictions);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
+	System.out.println("Deadlines: missed " + numDeadlineMisses);
     }
 
     /**
@@ -45,6 +50,12 @@ public final class Stats {
      */
     public long userTicks = 0;
 
+    /**
+     * The total amount of simulated time that Nachos has spent waiting for an
+     * interrupt, with no thread ready to run.
+     */
+    public long idleTicks = 0;
+
     /** The total number of sectors Nachos has read from the simulated disk.*/
     public int numDiskReads = 0;
     /** The total number of sectors Nachos has written to the simulated disk.*/
@@ -57,10 +68,24 @@ public final class Stats {
     public int numPageFaults = 0;
     /** The total number of TLB misses that have occurred. */
     public int numTLBMisses = 0;
+    /**
+     * The total number of page references the kernel saw that found the page
+     * in physical memory.
+     */
+    public int numPageHits = 0;
+    /**
+     * The total number of page references the kernel saw that had to bring
+     * the page into physical memory.
+     */
+    public int numPageMisses = 0;
+    /** The total number of pages evicted from physical memory. */
+    public int numPageEvictions = 0;
     /** The total number of packets Nachos has sent to the network. */
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
     public int numPacketsReceived = 0;
+    /** The total number of deadlines real-time threads have missed. */
+    public int numDeadlineMisses = 0;
 
     /**
      * The amount to advance simulated time after each user instructions is
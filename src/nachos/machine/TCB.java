@@ -6,6 +6,7 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +15,20 @@ import java.security.PrivilegedAction;
  * object.
  *
  * <p>
+ * Only one TCB runs at a time, and control is handed from one to the next
+ * either through each TCB's monitor (<tt>TCB.handoff = monitor</tt>, the
+ * default), or with <tt>LockSupport.park()</tt> and <tt>unpark()</tt>
+ * (<tt>TCB.handoff = park</tt>), which avoids monitor inflation and makes
+ * context switches cheaper. <tt>TCB.maxThreads</tt> and
+ * <tt>TCB.stackSize</tt> can be used to run very large numbers of threads.
+ *
+ * <p>
+ * When a TCB is destroyed, its Java thread can be kept in a pool of at most
+ * <tt>TCB.poolSize</tt> idle carriers, and bound to the next TCB that is
+ * started, so programs that fork many short-lived threads do not pay for
+ * creating a Java thread every time.
+ *
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -40,6 +55,16 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	String handoff = Config.getString("TCB.handoff", "monitor");
+	Lib.assertTrue(handoff.equals("monitor") || handoff.equals("park"),
+		       "TCB.handoff must be monitor or park");
+	parking = handoff.equals("park");
+
+	threadLimit = Config.getInteger("TCB.maxThreads", maxThreads);
+	stackSize = Config.getInteger("TCB.stackSize", 0);
+	poolSize = Config.getInteger("TCB.poolSize", 0);
+	Lib.assertTrue(threadLimit > 0 && stackSize >= 0 && poolSize >= 0);
     }
     
     /**
@@ -66,7 +91,7 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.size() < threadLimit);
 
 	isFirstTCB = (currentTCB == null);
 
@@ -86,17 +111,40 @@ public final class TCB {
 	this.target = target;
 
 	if (!isFirstTCB) {
-	    /* If this is not the first TCB, we have to make a new Java thread
-	     * to run it. Creating Java threads is a privileged operation.
+	    /* If this is not the first TCB, we need a Java thread to run it.
+	     * If an idle carrier is available, we bind it to this TCB.
+	     */
+	    final Carrier carrier = Carrier.takeIdle();
+
+	    if (carrier != null) {
+		javaThread = carrier.thread;
+
+		/* The carrier is blocked in wait() on its own monitor, and
+		 * bind() notifies it, so it calls threadroot() with this TCB.
+		 * Just like a new Java thread, it will wake us up from
+		 * threadroot().
+		 */
+		currentTCB.running = false;
+
+		carrier.bind(this);
+		currentTCB.waitForInterrupt();
+		return;
+	    }
+
+	    /* Otherwise we have to make a new Java thread to run it. Creating
+	     * Java threads is a privileged operation.
 	     */
-	    tcbTarget = new Runnable() {
-		    public void run() { threadroot(); }
-		};
+	    tcbTarget = new Carrier(this);
 
 	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
+		    public void run() {
+			javaThread = new Thread(null, tcbTarget, "TCB",
+						stackSize);
+		    }
 		});
 
+	    tcbTarget.thread = javaThread;
+
 	    /* The Java thread hasn't yet started, but we need to get it
 	     * blocking in yield(). We do this by temporarily turning off the
 	     * current TCB, starting the new Java thread, and waiting for it
@@ -287,10 +335,19 @@ public final class TCB {
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
      */
-    private synchronized void waitForInterrupt() {
-	while (!running) {
-	    try { wait(); }
-	    catch (InterruptedException e) { }
+    private void waitForInterrupt() {
+	if (parking) {
+	    // park() can return spuriously, so check running again
+	    while (!running)
+		LockSupport.park(this);
+	}
+	else {
+	    synchronized (this) {
+		while (!running) {
+		    try { wait(); }
+		    catch (InterruptedException e) { }
+		}
+	    }
 	}
     }
 
@@ -300,9 +357,17 @@ public final class TCB {
      * starting and destroying TCBs, as well as in context switching to this
      * TCB.
      */
-    private synchronized void interrupt() {
-	running = true;
-	notify();
+    private void interrupt() {
+	if (parking) {
+	    running = true;
+	    LockSupport.unpark(javaThread);
+	}
+	else {
+	    synchronized (this) {
+		running = true;
+		notify();
+	    }
+	}
     }
 
     private void associateThread(KThread thread) {
@@ -328,10 +393,26 @@ public final class TCB {
 
     /**
      * The maximum number of started, non-destroyed TCB's that can be in
-     * existence.
+     * existence, unless <tt>TCB.maxThreads</tt> specifies otherwise.
      */
     public static final int maxThreads = 250;
 
+    /** The limit on started, non-destroyed TCB's actually in effect. */
+    private static int threadLimit = maxThreads;
+
+    /**
+     * The stack size requested for each new Java thread, or 0 to use the
+     * JVM's default.
+     */
+    private static int stackSize = 0;
+
+    /**
+     * <tt>true</tt> if TCB's hand off control with <tt>park()</tt> and
+     * <tt>unpark()</tt>, rather than with <tt>wait()</tt> and
+     * <tt>notify()</tt>.
+     */
+    private static boolean parking = false;
+
     /**
      * A reference to the currently running TCB. It is initialized to
      * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -387,8 +468,12 @@ public final class TCB {
      * when the associated Java thread ought to run ASAP. When starting or
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
+     *
+     * <p>
+     * This is <tt>volatile</tt> because with <tt>TCB.handoff = park</tt> it
+     * is not protected by a monitor.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -400,7 +485,91 @@ public final class TCB {
     private KThread nachosThread = null;
     private boolean associated = false;
     private Runnable target;
-    private Runnable tcbTarget;
+    private Carrier tcbTarget;
+
+    /**
+     * The maximum number of idle carriers kept for reuse by
+     * <tt>start(Runnable)</tt>.
+     */
+    private static int poolSize = 0;
+
+    /**
+     * The body of every Java thread other than the first. A carrier runs the
+     * TCB it is bound to until that TCB is destroyed, and then, if the pool
+     * is not full, waits in the pool, on its own monitor, until
+     * <tt>start(Runnable)</tt> binds it to another TCB.
+     *
+     * <p>
+     * The destroyed TCB wakes up its destroyer before it finishes unwinding,
+     * so carriers join the pool concurrently with the running TCB. The pool
+     * is therefore protected by its own monitor.
+     */
+    private static class Carrier implements Runnable {
+	Carrier(TCB tcb) {
+	    this.tcb = tcb;
+	}
+
+	public void run() {
+	    while (true) {
+		tcb.threadroot();
+
+		// threadroot() only returns once the TCB has been destroyed
+		synchronized (this) {
+		    tcb = null;
+		}
+
+		if (!returnIdle(this))
+		    return;
+
+		synchronized (this) {
+		    while (tcb == null) {
+			try { wait(); }
+			catch (InterruptedException e) { }
+		    }
+		}
+	    }
+	}
+
+	/**
+	 * Bind this idle carrier to the specified TCB and wake it up.
+	 */
+	synchronized void bind(TCB tcb) {
+	    Lib.assertTrue(this.tcb == null);
+
+	    this.tcb = tcb;
+	    notify();
+	}
+
+	/**
+	 * Remove an idle carrier from the pool.
+	 *
+	 * @return	an idle carrier, or <tt>null</tt> if the pool is empty.
+	 */
+	static Carrier takeIdle() {
+	    synchronized (idleCarriers) {
+		if (idleCarriers.isEmpty())
+		    return null;
+
+		return idleCarriers.remove(idleCarriers.size()-1);
+	    }
+	}
+
+	private static boolean returnIdle(Carrier carrier) {
+	    synchronized (idleCarriers) {
+		if (idleCarriers.size() >= poolSize)
+		    return false;
+
+		idleCarriers.add(carrier);
+		return true;
+	    }
+	}
+
+	Thread thread;
+	private TCB tcb;
+
+	private static final Vector<Carrier> idleCarriers =
+	    new Vector<Carrier>();
+    }
 
     private static class TCBPrivilege implements Privilege.TCBPrivilege {
 	public void associateThread(KThread thread) {
@@ -13,6 +13,10 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is
  * a small degree of randomness here, so interrupts do not occur exactly every
  * 500 ticks.
+ *
+ * A kernel that only needs the timer at particular times can instead program
+ * each interrupt with <tt>setNextInterrupt()</tt>, which stops the periodic
+ * interrupts.
  */
 public final class Timer {
     /**
@@ -50,6 +54,28 @@ public final class Timer {
 	this.handler = handler;
     }
 
+    /**
+     * Stop generating periodic timer interrupts, and generate a single timer
+     * interrupt at the specified time instead, replacing any timer interrupt
+     * that has not occurred yet. The timer interrupt handler must call this
+     * again to be interrupted again.
+     *
+     * @param	time	the time at which to interrupt, in clock ticks since
+     *			Nachos started, or a negative number to not interrupt
+     *			at all.
+     */
+    public void setNextInterrupt(long time) {
+	periodic = false;
+
+	privilege.interrupt.cancel(pendingInterrupt);
+
+	if (time >= 0) {
+	    long delay = Math.max(time - getTime(), 1);
+	    pendingInterrupt = privilege.interrupt.schedule(delay, "timer",
+							   timerInterrupt);
+	}
+    }
+
     /**
      * Get the current time.
      *
@@ -60,7 +86,8 @@ public final class Timer {
     }
 
     private void timerInterrupt() {
-	scheduleInterrupt();
+	if (periodic)
+	    scheduleInterrupt();
 	scheduleAutoGraderInterrupt();
 
 	lastTimerInterrupt = getTime();
@@ -73,13 +100,17 @@ public final class Timer {
 	int delay = Stats.TimerTicks;
 	delay += Lib.random(delay/10) - (delay/20);
 
-	privilege.interrupt.schedule(delay, "timer", timerInterrupt);
+	pendingInterrupt = privilege.interrupt.schedule(delay, "timer",
+						       timerInterrupt);
     }
 
     private void scheduleAutoGraderInterrupt() {
 	privilege.interrupt.schedule(1, "timerAG", autoGraderInterrupt);
     }
 
+    private boolean periodic = true;
+    private long pendingInterrupt;
+
     private long lastTimerInterrupt;
     private Runnable timerInterrupt;
     private Runnable autoGraderInterrupt;
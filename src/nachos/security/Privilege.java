@@ -147,8 +147,19 @@ public abstract class Privilege {
 	 * @param	type	a name for the type of interrupt being
 	 *			scheduled.
 	 * @param	handler	the interrupt handler to call.
+	 * @return	a handle that can be passed to <tt>cancel()</tt>.
 	 */
-	public void schedule(long when, String type, Runnable handler);
+	public long schedule(long when, String type, Runnable handler);
+
+	/**
+	 * Cancel an interrupt that has not occurred yet.
+	 *
+	 * @param	handle	the handle returned when the interrupt was
+	 *			scheduled.
+	 * @return	<tt>true</tt> if the interrupt was pending, and will no
+	 *		longer occur.
+	 */
+	public boolean cancel(long handle);
 	
 	/**
 	 * Advance the simulated time.
@@ -158,6 +169,25 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Return the number of user ticks that can elapse before any pending
+	 * interrupt becomes due. The processor can account for this many
+	 * ticks using <tt>tickUser()</tt> instead of <tt>tick()</tt>.
+	 *
+	 * @return	the number of ticks that can be accounted without
+	 *		checking for due interrupts.
+	 */
+	public long userTicksUntilDue();
+
+	/**
+	 * Advance the simulated time by the specified number of user ticks,
+	 * without checking for due interrupts. The caller must not advance
+	 * the time past the point returned by <tt>userTicksUntilDue()</tt>.
+	 *
+	 * @param	count	the number of user ticks to account.
+	 */
+	public void tickUser(long count);
     }
 
     /**
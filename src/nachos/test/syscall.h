@@ -25,6 +25,11 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallSetDeadline	13
+#define syscallWaitPeriod	14
+#define syscallReadv		15
+#define syscallWritev		16
+#define syscallFork		17
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -53,7 +58,7 @@
  */
 void halt();
 
-/* PROCESS MANAGEMENT SYSCALLS: exit(), exec(), join() */
+/* PROCESS MANAGEMENT SYSCALLS: exit(), exec(), join(), fork() */
 
 /**
  * Terminate the current process immediately. Any open file descriptors
@@ -109,6 +114,19 @@ int exec(char *file, int argc, char *argv[]);
  */
 int join(int processID, int *status);
 
+/**
+ * Create a child process that is a copy of the current process, and continues
+ * from the return of fork(). The child has a new unique process ID. It shares
+ * the parent's memory copy-on-write, so a page is only copied when either
+ * process first writes it. It starts with a duplicate of each of the parent's
+ * file descriptors, at the same position in the file; the positions then move
+ * separately.
+ *
+ * In the parent, fork() returns the child process's process ID, which can be
+ * passed to join(). In the child, it returns 0. On error, returns -1.
+ */
+int fork();
+
 /* FILE MANAGEMENT SYSCALLS: creat, open, read, write, close, unlink
  *
  * A file descriptor is a small, non-negative integer that refers to a file on
@@ -257,6 +275,59 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/**
+ * Reserve budget ticks of CPU time every period ticks for the calling thread,
+ * to be received within deadline ticks of the start of each period. While it
+ * has budget left in the current period, the thread runs ahead of all threads
+ * without a reservation, earliest deadline first. The first period starts
+ * immediately. If period is 0, the reservation is removed instead.
+ *
+ * The kernel only admits a reservation if it can still meet the deadlines of
+ * every reservation, and only if it uses a deadline scheduler.
+ *
+ * Returns 0 on success, or -1 if the reservation was rejected.
+ */
+int setdeadline(int period, int budget, int deadline);
+
+/**
+ * End the work of the current period and sleep until the next period starts.
+ * The calling thread must have a reservation.
+ *
+ * Returns 0 if the work met its deadline, 1 if it missed, or -1 if an error
+ * occurred.
+ */
+int waitperiod();
+
+/**
+ * A buffer for readv() and writev(): len bytes starting at base.
+ */
+struct iovec {
+    char *base;
+    int len;
+};
+
+/**
+ * Attempt to read up to the total length of the iovcnt buffers described by
+ * iov from the file or stream referred to by fileDescriptor, filling each
+ * buffer in turn before the next. The data is read with a single read of the
+ * file for every 8 pages, so it costs as much as one read() into a single
+ * large buffer. Reading stops early if the file returns less than was asked
+ * for. At most 1024 buffers may be given.
+ *
+ * Returns the number of bytes read, or -1 if an error occurred.
+ */
+int readv(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Attempt to write the iovcnt buffers described by iov, in order, to the file
+ * or stream referred to by fileDescriptor, with a single write of the file for
+ * every 8 pages. Writing stops early if the file accepts less than was given.
+ * At most 1024 buffers may be given.
+ *
+ * Returns the number of bytes written, or -1 if an error occurred.
+ */
+int writev(int fileDescriptor, struct iovec *iov, int iovcnt);
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
@@ -1,13 +1,20 @@
 package nachos.threads;
 
-import java.util.PriorityQueue;
-
 import nachos.machine.*;
 
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Pending timeouts are kept in a hierarchical timing wheel: level <i>n</i>
+ * has 64 slots, each covering 64<sup><i>n</i></sup> ticks, and a timeout is
+ * filed under the lowest level whose span still contains its expiry time. A
+ * timeout is moved down a level each time the wheel reaches the start of its
+ * slot, so it is moved at most <tt>numLevels</tt> times. Scheduling and
+ * cancelling a timeout both take constant time, and a bitmap per level lets
+ * the wheel skip empty slots, however long the timer was quiet.
  */
 public class Alarm {
 	/**
@@ -16,38 +23,91 @@ public class Alarm {
 	 *
 	 * <p><b>Note</b>: Nachos will not function correctly with more than one
 	 * alarm.
+	 *
+	 * <p>
+	 * If <tt>Alarm.tickless</tt> is <tt>true</tt>, the alarm programs each
+	 * timer interrupt itself instead of taking one every 500 ticks: at the
+	 * earliest time a sleeping thread must wake, or one quantum
+	 * (<tt>Stats.TimerTicks</tt>) from now if another thread is ready and the
+	 * current thread must be preempted. While a single thread runs and no
+	 * thread sleeps, no timer interrupts occur at all.
 	 */
-	private PriorityQueue<WaitingThread> waitQueue; 
-
-
 	public Alarm() {
 		Machine.timer().setInterruptHandler(new Runnable() {
 			public void run() { timerInterrupt(); }
 		});
-		waitQueue = new PriorityQueue<WaitingThread>(); 
+
+		wheelTime = Machine.timer().getTime();
+
+		tickless = Config.getBoolean("Alarm.tickless", false);
+		if (tickless) {
+			boolean intStatus = Machine.interrupt().disable();
+			programTimer();
+			Machine.interrupt().restore(intStatus);
+		}
 	}
 
 	/**
 	 * The timer interrupt handler. This is called by the machine's timer
-	 * periodically (approximately every 500 clock ticks). Causes the current
-	 * thread to yield, forcing a context switch if there is another thread
-	 * that should be run.
+	 * periodically (approximately every 500 clock ticks). Unless the scheduler
+	 * lets it keep running, causes the current thread to yield, forcing a
+	 * context switch if there is another thread that should be run.
 	 */
 	public void timerInterrupt() {
-		KThread.currentThread().yield();
+		boolean preempt =
+			ThreadedKernel.scheduler.timerInterrupt(KThread.currentThread());
 		long currentTime = Machine.timer().getTime();
 		boolean intStatus = Machine.interrupt().disable();
-		
-		while (!waitQueue.isEmpty() && waitQueue.peek().waketime <= currentTime){
-			WaitingThread waitingThread = waitQueue.poll();
-			KThread thread = waitingThread.thread;
-			if (thread != null){
-			thread.ready();
-			}
+
+		advance(currentTime);
+
+		if (tickless) {
+			nextInterrupt = -1;
+			programTimer();
 		}
-		KThread.yield();
+
+		if (preempt)
+			KThread.yield();
 		Machine.interrupt().restore(intStatus);
-		
+
+	}
+
+	/**
+	 * Called by <tt>KThread.ready()</tt> whenever a thread is added to the
+	 * ready queue. In tickless mode, makes sure the running thread will be
+	 * preempted within one quantum.
+	 */
+	void threadReady() {
+		if (tickless)
+			programTimer(Machine.timer().getTime() + Stats.TimerTicks);
+	}
+
+	/**
+	 * Program the next timer interrupt for the earliest of the next event on
+	 * the wheel and, if another thread is ready, the end of the current
+	 * quantum.
+	 */
+	private void programTimer() {
+		long time = nextEventTime();
+
+		if (KThread.numReadyThreads() > 0) {
+			long preemptTime = Machine.timer().getTime() + Stats.TimerTicks;
+			if (time < 0 || preemptTime < time)
+				time = preemptTime;
+		}
+
+		nextInterrupt = time;
+		Machine.timer().setNextInterrupt(time);
+	}
+
+	/**
+	 * Make sure a timer interrupt occurs no later than the specified time.
+	 */
+	private void programTimer(long time) {
+		if (nextInterrupt < 0 || time < nextInterrupt) {
+			nextInterrupt = time;
+			Machine.timer().setNextInterrupt(time);
+		}
 	}
 
 	/**
@@ -65,40 +125,256 @@ public class Alarm {
 	 * @see	nachos.machine.Timer#getTime()
 	 */
 	public void waitUntil(long x) {
-		// for now, cheat just to get something working (busy waiting is bad)
-		long wakeTime = Machine.timer().getTime() + x;
-		KThread thread = KThread.currentThread();
-		WaitingThread waitingThread = new WaitingThread( wakeTime,thread);
+		final KThread thread = KThread.currentThread();
 		boolean intStatus = Machine.interrupt().disable();
-		waitQueue.add(waitingThread);
-		thread.sleep();
+
+		schedule(x, new Runnable() {
+			public void run() { thread.ready(); }
+		});
+		KThread.sleep();
+
 		Machine.interrupt().restore(intStatus);
 	}
 
-	private class WaitingThread implements Comparable<WaitingThread>{
-		private KThread thread;
-		private long waketime;
+	/**
+	 * Put the current thread, which the caller has already added to
+	 * <i>waitQueue</i>, to sleep until another thread takes it off the queue
+	 * and wakes it, or until at least <i>x</i> ticks have passed, in which
+	 * case the timer interrupt handler removes it from the queue and wakes it
+	 * instead. Interrupts must be disabled.
+	 *
+	 * @param	waitQueue	the queue the current thread is waiting in.
+	 * @param	x	the maximum number of clock ticks to wait.
+	 * @return	<tt>true</tt> if another thread woke the current thread,
+	 *		or <tt>false</tt> if the wait timed out.
+	 */
+	boolean sleepInQueue(final ThreadQueue waitQueue, long x) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		final KThread thread = KThread.currentThread();
+		final boolean[] timedOut = new boolean[1];
+
+		Timeout timeout = schedule(x, new Runnable() {
+			public void run() {
+				if (waitQueue.remove(thread)) {
+					timedOut[0] = true;
+					thread.ready();
+				}
+			}
+		});
+		KThread.sleep();
+
+		cancel(timeout);
+		return !timedOut[0];
+	}
 
-		public WaitingThread(long waketime, KThread thread){
-			this.waketime = waketime;
-			this.thread = thread;
+	/**
+	 * Arrange for the specified handler to be called by the timer interrupt
+	 * handler, with interrupts disabled, during the first timer interrupt at
+	 * least <i>x</i> ticks from now. Interrupts must be disabled.
+	 *
+	 * @param	x	the minimum number of clock ticks to wait.
+	 * @param	handler	the handler to call.
+	 * @return	a handle that can be passed to <tt>cancel()</tt>.
+	 */
+	public Timeout schedule(long x, Runnable handler) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		long now = Machine.timer().getTime();
+
+		Timeout timeout = new Timeout(Math.max(now + x, now + 1), handler);
+		insert(timeout);
+
+		if (tickless)
+			programTimer(timeout.time);
+
+		return timeout;
+	}
+
+	/**
+	 * Cancel a timeout, so that its handler is not called. Interrupts must be
+	 * disabled.
+	 *
+	 * @param	timeout	the handle returned by <tt>schedule()</tt>.
+	 * @return	<tt>true</tt> if the timeout was cancelled, or <tt>false</tt>
+	 *		if its handler has already been called or it was already
+	 *		cancelled.
+	 */
+	public boolean cancel(Timeout timeout) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (timeout.level < 0)
+			return false;
+
+		unlink(timeout);
+		return true;
+	}
+
+	/**
+	 * A timeout scheduled with <tt>schedule()</tt>.
+	 */
+	public static class Timeout {
+		Timeout(long time, Runnable handler) {
+			this.time = time;
+			this.handler = handler;
+		}
+
+		/**
+		 * Return the time at which the timeout expires.
+		 *
+		 * @return	the expiry time, in clock ticks since Nachos started.
+		 */
+		public long getTime() {
+			return time;
 		}
 
-		@Override
-		public int compareTo(WaitingThread o) {
-			if (this.waketime > o.waketime){
-				return 1;
+		private long time;
+		private Runnable handler;
+
+		/** The wheel level and slot the timeout is filed under, or -1. */
+		private int level = -1, slot;
+		private Timeout prev, next;
+	}
+
+	/**
+	 * File a timeout under the lowest level whose span, around
+	 * <tt>wheelTime</tt>, contains its expiry time. A timeout that expires
+	 * at <tt>wheelTime</tt> itself goes in the current slot of level 0.
+	 */
+	private void insert(Timeout timeout) {
+		long time = timeout.time;
+		Lib.assertTrue(time >= wheelTime);
+
+		int level = (63 - Long.numberOfLeadingZeros(time ^ wheelTime)) / levelBits;
+		int slot;
+
+		if (level < numLevels) {
+			slot = (int) (time >>> (level * levelBits)) & slotMask;
+			occupied[level] |= 1L << slot;
+		}
+		else {
+			// beyond the wheel; revisited when the top level wraps around
+			level = numLevels;
+			slot = 0;
+		}
+
+		Timeout head = slots[level][slot];
+		timeout.level = level;
+		timeout.slot = slot;
+		timeout.prev = null;
+		timeout.next = head;
+		if (head != null)
+			head.prev = timeout;
+		slots[level][slot] = timeout;
+	}
+
+	private void unlink(Timeout timeout) {
+		int level = timeout.level, slot = timeout.slot;
+
+		if (timeout.prev == null)
+			slots[level][slot] = timeout.next;
+		else
+			timeout.prev.next = timeout.next;
+
+		if (timeout.next != null)
+			timeout.next.prev = timeout.prev;
+
+		if (slots[level][slot] == null && level < numLevels)
+			occupied[level] &= ~(1L << slot);
+
+		timeout.level = -1;
+		timeout.prev = timeout.next = null;
+	}
+
+	/**
+	 * Return the earliest time at which the wheel has work to do: either a
+	 * timeout expires, or a slot of a higher level must be moved down.
+	 *
+	 * @return	the time of the next event, or -1 if no timeout is pending.
+	 */
+	private long nextEventTime() {
+		for (int level = 0; level < numLevels; level++) {
+			int shift = level * levelBits;
+			int current = (int) (wheelTime >>> shift) & slotMask;
+
+			// only slots after the current one can be occupied
+			long later = (current == slotMask) ? 0 : occupied[level] & (-2L << current);
+			if (later != 0) {
+				long span = wheelTime >>> (shift + levelBits) << (shift + levelBits);
+				return span | ((long) Long.numberOfTrailingZeros(later) << shift);
 			}
-			else{ 
-				if (this.waketime < o.waketime){
-					return -1;
-				}
-				else{
-					return 0;
-				}
+		}
+
+		if (slots[numLevels][0] != null)
+			return ((wheelTime >>> wheelBits) + 1) << wheelBits;
+
+		return -1;
+	}
+
+	/**
+	 * Advance the wheel to the specified time, calling the handler of every
+	 * timeout that has expired.
+	 */
+	private void advance(long time) {
+		while (true) {
+			long next = nextEventTime();
+			if (next < 0 || next > time)
+				break;
+
+			wheelTime = next;
+
+			// move the slots that start now down, from the top level
+			if ((next & ((1L << wheelBits) - 1)) == 0)
+				cascade(numLevels, 0);
+			for (int level = numLevels - 1; level > 0; level--) {
+				int shift = level * levelBits;
+				if ((next & ((1L << shift) - 1)) == 0)
+					cascade(level, (int) (next >>> shift) & slotMask);
+			}
+
+			// the handlers may schedule and cancel other timeouts
+			int slot = (int) next & slotMask;
+			while (slots[0][slot] != null) {
+				Timeout timeout = slots[0][slot];
+				unlink(timeout);
+				timeout.handler.run();
 			}
 		}
 
+		wheelTime = Math.max(wheelTime, time);
+	}
+
+	/**
+	 * Refile every timeout in the specified slot under a lower level.
+	 */
+	private void cascade(int level, int slot) {
+		Timeout timeout = slots[level][slot];
+		slots[level][slot] = null;
+		if (level < numLevels)
+			occupied[level] &= ~(1L << slot);
 
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			insert(timeout);
+			timeout = next;
+		}
 	}
+
+	/** <tt>true</tt> if the alarm programs each timer interrupt itself. */
+	private boolean tickless;
+	/** The time of the next programmed timer interrupt, or -1 if none. */
+	private long nextInterrupt = -1;
+
+	private static final int levelBits = 6, slotMask = (1 << levelBits) - 1;
+	private static final int numLevels = 6, wheelBits = numLevels * levelBits;
+
+	/**
+	 * The timeouts filed under each slot of each level, as doubly-linked
+	 * lists. The extra level holds timeouts beyond the last level.
+	 */
+	private Timeout[][] slots = new Timeout[numLevels + 1][1 << levelBits];
+	/** Bit <i>n</i> of element <i>l</i> is set if slot <i>n</i> of level <i>l</i> is occupied. */
+	private long[] occupied = new long[numLevels];
+	/** The time up to which every expired timeout has been handled. */
+	private long wheelTime;
 }
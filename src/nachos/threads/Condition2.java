@@ -52,6 +52,45 @@ public class Condition2 {
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Like <tt>sleep()</tt>, but also wake up if at least <i>ticks</i> clock
+	 * ticks pass before another thread wakes this one. The thread will
+	 * automatically reacquire the lock before <tt>sleepFor()</tt> returns.
+	 *
+	 * @param	ticks	the maximum number of clock ticks to sleep.
+	 * @return	<tt>true</tt> if another thread woke this one, or
+	 *		<tt>false</tt> if the sleep timed out.
+	 */
+	public boolean sleepFor(long ticks) {
+		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+		boolean intStatus = Machine.interrupt().disable();
+
+		conditionLock.release();
+
+		final KThread thread = KThread.currentThread();
+		final boolean[] timedOut = new boolean[1];
+
+		waitQueue.add(thread);
+
+		Alarm.Timeout timeout = ThreadedKernel.alarm.schedule(ticks, new Runnable() {
+			public void run() {
+				if (waitQueue.remove(thread)) {
+					timedOut[0] = true;
+					thread.ready();
+				}
+			}
+		});
+
+		KThread.sleep();
+
+		ThreadedKernel.alarm.cancel(timeout);
+
+		conditionLock.acquire();
+
+		Machine.interrupt().restore(intStatus);
+		return !timedOut[0];
+	}
+
 	/**
 	 * Wake up at most one thread sleeping on this condition variable. The
 	 * current thread must hold the associated lock.
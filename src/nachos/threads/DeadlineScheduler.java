@@ -0,0 +1,436 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.HashMap;
+import java.util.TreeSet;
+
+/**
+ * A scheduler that adds an earliest-deadline-first real-time class above
+ * another scheduler.
+ *
+ * <p>
+ * A thread can reserve a <i>budget</i> of ticks every <i>period</i> ticks,
+ * which it must receive within <i>deadline</i> ticks of the start of each
+ * period, by calling <tt>setDeadline()</tt>. Each period releases a new
+ * <i>job</i>; the thread ends a job by calling <tt>waitForNextPeriod()</tt>,
+ * which sleeps until the next release. While its current job has budget left,
+ * a thread is in the real-time class, and the next thread to be dequeued is
+ * always the real-time thread whose job has the earliest deadline. All other
+ * threads are scheduled by the base scheduler, named by
+ * <tt>DeadlineScheduler.baseScheduler</tt>, whenever no real-time thread is
+ * waiting.
+ *
+ * <p>
+ * Budgets are enforced by <tt>Alarm.timerInterrupt()</tt>: a thread whose job
+ * has used up its budget drops to the base scheduler until its next release,
+ * so an overrunning thread cannot delay other real-time threads. A reservation
+ * is only admitted if the total density (budget divided by deadline) of all
+ * reservations stays within <tt>DeadlineScheduler.maxUtilization</tt>, which
+ * guarantees that every job meets its deadline as long as no thread overruns
+ * its budget. A job that ends after its deadline, or that has not ended when
+ * the next job is released, counts as a deadline miss in the statistics
+ * printed when Nachos halts.
+ *
+ * <p>
+ * The base scheduler does not see real-time threads that are dequeued ahead
+ * of it, so it does not donate priority to a real-time thread holding a lock.
+ */
+public class DeadlineScheduler extends Scheduler {
+	/**
+	 * Allocate a new deadline scheduler, and the base scheduler it uses for
+	 * threads that are not in the real-time class.
+	 */
+	public DeadlineScheduler() {
+		String baseName = Config.getString("DeadlineScheduler.baseScheduler",
+				"nachos.threads.RoundRobinScheduler");
+		baseScheduler = (Scheduler) Lib.constructObject(baseName);
+		Lib.assertTrue(!(baseScheduler instanceof DeadlineScheduler));
+
+		maxUtilization = Config.getDouble("DeadlineScheduler.maxUtilization", 1.0);
+		Lib.assertTrue(maxUtilization > 0.0 && maxUtilization <= 1.0);
+	}
+
+	/**
+	 * Allocate a new deadline thread queue.
+	 *
+	 * @param	transferPriority	passed on to the base scheduler.
+	 * @return	a new deadline thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new DeadlineQueue(baseScheduler.newThreadQueue(transferPriority));
+	}
+
+	public int getPriority(KThread thread) {
+		return baseScheduler.getPriority(thread);
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return baseScheduler.getEffectivePriority(thread);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		baseScheduler.setPriority(thread, priority);
+	}
+
+	public boolean increasePriority() {
+		return baseScheduler.increasePriority();
+	}
+
+	public boolean decreasePriority() {
+		return baseScheduler.decreasePriority();
+	}
+
+	public void runningThread(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		baseScheduler.runningThread(thread);
+
+		long time = Machine.timer().getTime();
+
+		if (running != null)
+			running.charge(time);
+
+		running = reservations.isEmpty() ? null : reservations.get(thread);
+		if (running != null)
+			running.runningSince = time;
+	}
+
+	public boolean timerInterrupt(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		boolean preempt = baseScheduler.timerInterrupt(thread);
+
+		// the thread is about to yield, and is requeued by its remaining budget
+		if (running != null) {
+			long time = Machine.timer().getTime();
+			running.charge(time);
+			running.update(time);
+			return true;
+		}
+
+		return preempt;
+	}
+
+	/**
+	 * Reserve CPU time for the specified thread, or change its reservation.
+	 * The first job is released immediately. The reservation is rejected if it
+	 * would make the total density of all reservations exceed
+	 * <tt>DeadlineScheduler.maxUtilization</tt>.
+	 *
+	 * @param	thread	the thread to reserve time for.
+	 * @param	period	the number of ticks between releases.
+	 * @param	budget	the number of ticks the thread may run per period.
+	 * @param	deadline	the number of ticks after each release by which
+	 *				the thread must have used its budget.
+	 * @return	<tt>true</tt> if the reservation was admitted.
+	 */
+	public boolean setDeadline(KThread thread, long period, long budget, long deadline) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(budget > 0 && budget <= deadline && deadline <= period);
+
+		Reservation reservation = reservations.get(thread);
+
+		double density = (double) budget / deadline;
+		double oldDensity = (reservation == null) ? 0.0 : reservation.density;
+		if (totalDensity - oldDensity + density > maxUtilization) {
+			Lib.debug(dbgDeadline, "Rejected reservation for " + thread);
+			return false;
+		}
+
+		if (reservation == null) {
+			reservation = new Reservation(thread);
+			reservations.put(thread, reservation);
+		}
+
+		long time = Machine.timer().getTime();
+
+		if (reservation == running)
+			reservation.charge(time);
+
+		// the order of a waiting thread depends on its deadline
+		DeadlineQueue queue = reservation.queuedIn;
+		if (queue != null)
+			queue.ready.remove(reservation);
+
+		totalDensity += density - oldDensity;
+
+		reservation.period = period;
+		reservation.budget = budget;
+		reservation.relativeDeadline = deadline;
+		reservation.density = density;
+		reservation.release(time);
+
+		if (queue != null)
+			queue.ready.add(reservation);
+
+		Lib.debug(dbgDeadline, "Admitted reservation for " + thread
+				+ " (utilization " + totalDensity + ")");
+		return true;
+	}
+
+	/**
+	 * Remove the reservation of the specified thread, if it has one, so that
+	 * it is scheduled only by the base scheduler. A thread with a reservation
+	 * should remove it before it finishes.
+	 *
+	 * @param	thread	the thread whose reservation to remove.
+	 */
+	public void clearDeadline(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Reservation reservation = reservations.remove(thread);
+		if (reservation == null)
+			return;
+
+		totalDensity = Math.max(totalDensity - reservation.density, 0.0);
+
+		if (reservation == running)
+			running = null;
+
+		DeadlineQueue queue = reservation.queuedIn;
+		if (queue != null) {
+			queue.ready.remove(reservation);
+			reservation.queuedIn = null;
+			queue.baseQueue.waitForAccess(thread);
+		}
+	}
+
+	/**
+	 * End the current job of the current thread, and sleep until its next
+	 * job is released. The current thread must have a reservation. Interrupts
+	 * must be enabled.
+	 *
+	 * @return	<tt>true</tt> if the job that ended met its deadline.
+	 */
+	public boolean waitForNextPeriod() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		Reservation reservation = reservations.get(KThread.currentThread());
+		Lib.assertTrue(reservation != null);
+
+		long time = Machine.timer().getTime();
+		if (reservation == running)
+			reservation.charge(time);
+
+		long misses = reservation.misses;
+		reservation.update(time);
+
+		if (!reservation.complete) {
+			if (time > reservation.deadline)
+				reservation.missed();
+			reservation.complete = true;
+		}
+
+		boolean met = (reservation.misses == misses);
+		long nextRelease = reservation.release + reservation.period;
+
+		Machine.interrupt().restore(intStatus);
+
+		ThreadedKernel.alarm.waitUntil(nextRelease - time);
+		return met;
+	}
+
+	/**
+	 * Return <tt>true</tt> if the specified thread has a reservation.
+	 *
+	 * @param	thread	the thread to check.
+	 * @return	<tt>true</tt> if the thread has reserved time.
+	 */
+	public boolean hasDeadline(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return reservations.containsKey(thread);
+	}
+
+	/**
+	 * Return the number of deadlines the specified thread has missed since it
+	 * last reserved time.
+	 *
+	 * @param	thread	the thread whose misses to return.
+	 * @return	the number of deadlines missed, or 0 if the thread has no
+	 *		reservation.
+	 */
+	public long getDeadlineMisses(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Reservation reservation = reservations.get(thread);
+		return (reservation == null) ? 0 : reservation.misses;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that holds real-time threads in deadline order,
+	 * ahead of a queue of the base scheduler.
+	 */
+	protected class DeadlineQueue extends ThreadQueue {
+		DeadlineQueue(ThreadQueue baseQueue) {
+			this.baseQueue = baseQueue;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Reservation reservation = reservations.isEmpty() ? null : reservations.get(thread);
+
+			if (reservation != null && reservation.isEligible(Machine.timer().getTime())) {
+				Lib.assertTrue(reservation.queuedIn == null);
+
+				reservation.sequence = numQueued++;
+				reservation.queuedIn = this;
+				ready.add(reservation);
+			}
+			else {
+				baseQueue.waitForAccess(thread);
+			}
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (ready.isEmpty())
+				return baseQueue.nextThread();
+
+			Reservation reservation = ready.pollFirst();
+			reservation.queuedIn = null;
+
+			return reservation.thread;
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			baseQueue.acquire(thread);
+		}
+
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Reservation reservation = reservations.isEmpty() ? null : reservations.get(thread);
+
+			if (reservation != null && reservation.queuedIn == this) {
+				ready.remove(reservation);
+				reservation.queuedIn = null;
+				return true;
+			}
+
+			return baseQueue.remove(thread);
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (Reservation reservation : ready)
+				System.out.print(" " + reservation.thread + " (deadline " + reservation.deadline + ")");
+			baseQueue.print();
+		}
+
+		private ThreadQueue baseQueue;
+
+		private TreeSet<Reservation> ready = new TreeSet<Reservation>();
+		private long numQueued = 0;
+	}
+
+	/**
+	 * The reservation of a real-time thread, and the state of its current
+	 * job.
+	 */
+	protected class Reservation implements Comparable<Reservation> {
+		Reservation(KThread thread) {
+			this.thread = thread;
+		}
+
+		public int compareTo(Reservation reservation) {
+			if (deadline != reservation.deadline)
+				return (deadline < reservation.deadline) ? -1 : 1;
+			else if (sequence != reservation.sequence)
+				return (sequence < reservation.sequence) ? -1 : 1;
+			else
+				return 0;
+		}
+
+		/**
+		 * Release a new job at the specified time.
+		 */
+		void release(long time) {
+			release = time;
+			deadline = time + relativeDeadline;
+			remaining = budget;
+			complete = false;
+		}
+
+		/**
+		 * Release the job of the period containing the specified time, if it
+		 * has not been released yet, counting a miss if the current job has
+		 * not ended.
+		 */
+		void update(long time) {
+			long periods = (time - release) / period;
+			if (periods <= 0)
+				return;
+
+			if (!complete)
+				missed();
+
+			release(release + periods * period);
+		}
+
+		/**
+		 * Subtract the ticks the associated thread has run since it was last
+		 * charged from the budget of its current job.
+		 */
+		void charge(long time) {
+			remaining -= time - runningSince;
+			runningSince = time;
+		}
+
+		/**
+		 * Return <tt>true</tt> if the associated thread belongs in the
+		 * real-time class at the specified time.
+		 */
+		boolean isEligible(long time) {
+			update(time);
+			return remaining > 0;
+		}
+
+		void missed() {
+			Lib.debug(dbgDeadline, thread + " missed deadline " + deadline);
+
+			misses++;
+			Machine.autoGrader().deadlineMissed(thread);
+		}
+
+		KThread thread;
+
+		long period, budget, relativeDeadline;
+		double density;
+
+		/** The release time and absolute deadline of the current job. */
+		long release, deadline;
+		/** The budget left to the current job. */
+		long remaining;
+		/** <tt>true</tt> if the current job has ended or already missed. */
+		boolean complete;
+		/** The time at which the thread was last charged. */
+		long runningSince = 0;
+
+		long misses = 0;
+
+		/** The queue the thread is waiting in, and its order of arrival. */
+		DeadlineQueue queuedIn = null;
+		long sequence;
+	}
+
+	/** The scheduler for threads outside the real-time class. */
+	private Scheduler baseScheduler;
+
+	private double maxUtilization;
+	private double totalDensity = 0.0;
+
+	private HashMap<KThread, Reservation> reservations = new HashMap<KThread, Reservation>();
+
+	/** The reservation of the thread that is running, if it has one. */
+	private Reservation running = null;
+
+	private static final char dbgDeadline = 'e';
+}
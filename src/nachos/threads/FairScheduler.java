@@ -0,0 +1,264 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.TreeSet;
+
+/**
+ * A scheduler that shares the CPU fairly, measured in the simulated ticks each
+ * thread actually uses.
+ *
+ * <p>
+ * Each thread accumulates a <i>virtual runtime</i>: the ticks it has run,
+ * scaled by <tt>priorityDefault</tt> divided by its priority, so a thread with
+ * twice the priority accumulates virtual runtime half as fast. The next thread
+ * to be dequeued is always the waiting thread with the least virtual runtime
+ * (the one that has been waiting longest, among equals). Waiting threads are
+ * kept in a balanced tree, so selection takes O(log n) time.
+ *
+ * <p>
+ * Each queue remembers the least virtual runtime it has dequeued. A thread
+ * that joins a queue never starts more than
+ * <tt>FairScheduler.sleeperCredit</tt> ticks behind it, so a thread that
+ * slept for a long time, for example in <tt>Alarm.waitUntil()</tt> or
+ * <tt>Condition2.sleep()</tt>, gets a bounded head start instead of
+ * monopolizing the CPU.
+ */
+public class FairScheduler extends Scheduler {
+	/**
+	 * Allocate a new fair scheduler.
+	 */
+	public FairScheduler() {
+		sleeperCredit = (long) Config.getInteger("FairScheduler.sleeperCredit",
+				Stats.TimerTicks) << vruntimeShift;
+		Lib.assertTrue(sleeperCredit >= 0);
+	}
+
+	/**
+	 * Allocate a new fair thread queue.
+	 *
+	 * @param	transferPriority	ignored.
+	 * @return	a new fair thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new FairQueue();
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getFairThreadState(thread).priority;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum && priority <= priorityMaximum);
+
+		FairThreadState state = getFairThreadState(thread);
+
+		// charge the ticks used so far at the old priority
+		if (state == running)
+			state.charge(Machine.timer().getTime());
+
+		state.priority = priority;
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable(), returnBool = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMaximum)
+			returnBool = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return returnBool;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable(), returnBool = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMinimum)
+			returnBool = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return returnBool;
+	}
+
+	public void runningThread(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		long time = Machine.timer().getTime();
+
+		// a thread that was queued has already been charged
+		if (running != null && running.queuedIn == null)
+			running.charge(time);
+
+		running = getFairThreadState(thread);
+		running.runningSince = time;
+	}
+
+	/**
+	 * The default priority for a new thread.
+	 */
+	public static final int priorityDefault = 10;
+
+	/**
+	 * The minimum priority that a thread can have.
+	 */
+	public static final int priorityMinimum = 1;
+
+	/**
+	 * The maximum priority that a thread can have.
+	 */
+	public static final int priorityMaximum = 1000;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param	thread	the thread whose scheduling state to return.
+	 * @return	the scheduling state of the specified thread.
+	 */
+	protected FairThreadState getFairThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new FairThreadState(thread);
+
+		return (FairThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> ordered by virtual runtime.
+	 */
+	protected class FairQueue extends ThreadQueue {
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			FairThreadState state = getFairThreadState(thread);
+			Lib.assertTrue(state.queuedIn == null);
+
+			// virtual runtime must not change while the thread is queued
+			if (state == running)
+				state.charge(Machine.timer().getTime());
+
+			if (!state.started) {
+				state.started = true;
+				state.vruntime = minVruntime;
+			}
+			else {
+				state.vruntime = Math.max(state.vruntime, minVruntime - sleeperCredit);
+			}
+
+			state.sequence = numQueued++;
+			state.queuedIn = this;
+			waiting.add(state);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (waiting.isEmpty())
+				return null;
+
+			FairThreadState state = waiting.pollFirst();
+			state.queuedIn = null;
+
+			minVruntime = Math.max(minVruntime, state.vruntime);
+
+			return state.thread;
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+		}
+
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			FairThreadState state = getFairThreadState(thread);
+			if (state.queuedIn != this)
+				return false;
+
+			waiting.remove(state);
+			state.queuedIn = null;
+			return true;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (FairThreadState state : waiting)
+				System.out.print(" " + state.thread + " (" + (state.vruntime >> vruntimeShift) + ")");
+			System.out.println();
+		}
+
+		private TreeSet<FairThreadState> waiting = new TreeSet<FairThreadState>();
+
+		/** The least virtual runtime dequeued so far. */
+		private long minVruntime = 0;
+		private long numQueued = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread under a fair scheduler.
+	 */
+	protected class FairThreadState implements Comparable<FairThreadState> {
+		FairThreadState(KThread thread) {
+			this.thread = thread;
+		}
+
+		public int compareTo(FairThreadState state) {
+			if (vruntime != state.vruntime)
+				return (vruntime < state.vruntime) ? -1 : 1;
+			else if (sequence != state.sequence)
+				return (sequence < state.sequence) ? -1 : 1;
+			else
+				return 0;
+		}
+
+		/**
+		 * Add the ticks the associated thread has run since it was last
+		 * charged to its virtual runtime.
+		 */
+		void charge(long time) {
+			vruntime += ((time - runningSince) << vruntimeShift) * priorityDefault / priority;
+			runningSince = time;
+		}
+
+		KThread thread;
+		int priority = priorityDefault;
+
+		/** The virtual runtime, in ticks shifted left by <tt>vruntimeShift</tt>. */
+		long vruntime = 0;
+		/** The time at which the thread was last charged. */
+		long runningSince = 0;
+
+		/** <tt>true</tt> once the thread has been queued for the first time. */
+		boolean started = false;
+
+		/** The queue the thread is waiting in, and its order of arrival. */
+		FairQueue queuedIn = null;
+		long sequence;
+	}
+
+	/** The credit given to a waking thread, in virtual runtime units. */
+	private long sleeperCredit;
+
+	/** The state of the thread that is running. */
+	private FairThreadState running = null;
+
+	/** The number of fraction bits kept in virtual runtimes. */
+	private static final int vruntimeShift = 10;
+}
@@ -220,6 +220,11 @@ public class KThread {
 
 		boolean intStatus = Machine.interrupt().disable();
 
+		if (numReady == 0) {
+			Machine.interrupt().restore(intStatus);
+			return;
+		}
+
 		currentThread.ready();
 
 		runNextThread();
@@ -260,12 +265,29 @@ public class KThread {
 		Lib.assertTrue(status != statusReady);
 
 		status = statusReady;
-		if (this != idleThread)
+		if (this != idleThread) {
 			readyQueue.waitForAccess(this);
+			numReady++;
+
+			if (ThreadedKernel.alarm != null)
+				ThreadedKernel.alarm.threadReady();
+		}
 
 		Machine.autoGrader().readyThread(this);
 	}
 
+	/**
+	 * Return the number of threads in the ready queue, not counting the
+	 * current thread or the idle thread. Interrupts must be disabled.
+	 *
+	 * @return	the number of threads waiting to run.
+	 */
+	static int numReadyThreads() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return numReady;
+	}
+
 	/**
 	 * Waits for this thread to finish. If this thread is already finished,
 	 * return immediately. This method must only be called once; the second
@@ -296,12 +318,17 @@ public class KThread {
 	 *
 	 * <p>
 	 * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
+	 *
+	 * <p>
+	 * When the ready set is still empty, only an interrupt can make another
+	 * thread ready, so the idle thread skips ahead to the next interrupt
+	 * instead of spinning.
 	 */
 	private static void createIdleThread() {
 		Lib.assertTrue(idleThread == null);
 
 		idleThread = new KThread(new Runnable() {
-			public void run() { while (true) yield(); }
+			public void run() { while (true) idle(); }
 		});
 		idleThread.setName("idle");
 
@@ -310,6 +337,28 @@ public class KThread {
 		idleThread.fork();
 	}
 
+	/**
+	 * Run another thread if one is ready, otherwise wait for the next
+	 * interrupt. Called repeatedly by the idle thread.
+	 */
+	private static void idle() {
+		Lib.assertTrue(currentThread == idleThread);
+
+		Machine.interrupt().disable();
+
+		KThread nextThread = readyQueue.nextThread();
+		if (nextThread == null) {
+			Machine.interrupt().idle();
+		}
+		else {
+			numReady--;
+			currentThread.ready();
+			nextThread.run();
+		}
+
+		Machine.interrupt().enable();
+	}
+
 	/**
 	 * Determine the next thread to run, then dispatch the CPU to the thread
 	 * using <tt>run()</tt>.
@@ -318,6 +367,8 @@ public class KThread {
 		KThread nextThread = readyQueue.nextThread();
 		if (nextThread == null)
 			nextThread = idleThread;
+		else
+			numReady--;
 
 		nextThread.run();
 	}
@@ -371,6 +422,7 @@ public class KThread {
 		Lib.assertTrue(tcb == TCB.currentTCB());
 
 		Machine.autoGrader().runningThread(this);
+		ThreadedKernel.scheduler.runningThread(this);
 
 		status = statusRunning;
 
@@ -451,6 +503,8 @@ public class KThread {
 	private static int numCreated = 0;
 
 	private static ThreadQueue readyQueue = null;
+	/** The number of threads in <tt>readyQueue</tt>. */
+	private static int numReady = 0;
 	private static KThread currentThread = null;
 	private static KThread toBeDestroyed = null;
 	private static KThread idleThread = null;
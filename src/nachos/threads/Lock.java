@@ -50,6 +50,37 @@ public class Lock {
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Atomically acquire this lock, giving up if it does not become free
+     * within the specified number of ticks. The current thread must not
+     * already hold this lock.
+     *
+     * @param	ticks	the maximum number of clock ticks to wait. If not
+     *			positive, do not wait at all.
+     * @return	<tt>true</tt> if the lock was acquired, or <tt>false</tt> if
+     *		the wait timed out.
+     */
+    public boolean tryAcquire(long ticks) {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (lockHolder == null) {
+	    waitQueue.acquire(thread);
+	    lockHolder = thread;
+	}
+	else if (ticks > 0) {
+	    waitQueue.waitForAccess(thread);
+	    ThreadedKernel.alarm.sleepInQueue(waitQueue, ticks);
+	}
+
+	boolean acquired = (lockHolder == thread);
+
+	Machine.interrupt().restore(intStatus);
+	return acquired;
+    }
+
     /**
      * Atomically release this lock, allowing other threads to acquire it.
      */
@@ -2,6 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.Arrays;
 import java.util.Random;
 import java.util.TreeSet;
 import java.util.HashSet;
@@ -129,6 +130,15 @@ public class LotteryScheduler extends PriorityScheduler {
 
 
 
+	/**
+	 * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+	 *
+	 * <p>
+	 * Each waiting thread occupies a slot, and a Fenwick tree over the slots
+	 * holds the prefix sums of their effective tickets. Drawing a winner,
+	 * adding or removing a waiter, and changing a waiter's tickets all take
+	 * O(log n) time.
+	 */
 	protected class LotteryQueue extends ThreadQueue {
 		LotteryQueue(boolean transferTickets2) {
 			transferTickets = transferTickets2;
@@ -142,25 +152,16 @@ public class LotteryScheduler extends PriorityScheduler {
 		@Override
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			if (waiting.isEmpty())
+			if (numWaiting == 0) {
+				if (lockingThread != null)
+					lockingThread.release(this);
 				return null;
-			else {
-				int ticketIndex = randomGenerator.nextInt(totalEffectiveTickets)+1;
-
-				KThread returnThread = null;
-
-				for (LotteryThreadState lts : waiting) {
-					ticketIndex -= lts.getEffectiveTickets();
+			}
 
-					if (ticketIndex <= 0) {
-						returnThread = lts.thread;
-						lts.acquire(this);
-						break;
-					}
-				}
+			LotteryThreadState winner = slotStates[findSlot(drawTicket())];
+			winner.acquire(this);
 
-				return returnThread;
-			}
+			return winner.thread;
 		}
 
 		@Override
@@ -169,10 +170,26 @@ public class LotteryScheduler extends PriorityScheduler {
 			getLotteryThreadState(thread).acquire(this);
 		}
 
+		@Override
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			LotteryThreadState lts = getLotteryThreadState(thread);
+			if (lts.waitingOn != this)
+				return false;
+
+			lts.leave();
+			return true;
+		}
+
 		@Override
 		public void print() {
-			// TODO Auto-generated method stub
+			Lib.assertTrue(Machine.interrupt().disabled());
 
+			for (int slot = 0; slot < slotStates.length; slot++)
+				if (slotStates[slot] != null)
+					System.out.print(" " + slotStates[slot].thread + " (" + slotTickets[slot] + ")");
+			System.out.println();
 		}
 
 		/**
@@ -180,42 +197,139 @@ public class LotteryScheduler extends PriorityScheduler {
 		 */
 		private LotteryThreadState lockingThread;
 
-		/**
-		 * A set of things that have locked this.
-		 */
-		private HashSet<LotteryThreadState> waiting = new HashSet<LotteryThreadState>();
-
 		/**
 		 * A boolean to indicate whether or not <tt>this</tt> should implement priority donation.
 		 */
 		private boolean transferTickets;
 
 		/**
-		 * The total number of effective tickets of all the things in <tt>waiting</tt>.
+		 * The total number of effective tickets of all the waiting threads.
 		 */
-		private int totalEffectiveTickets;
+		private long totalEffectiveTickets;
 
 		/**
 		 * A random number generator for holding the lottery.
 		 */
 		Random randomGenerator = new Random();
 
-		void updateEffectiveTickets() {
-			int temp = 0;
-			for (LotteryThreadState lts : waiting)
-				temp += lts.getEffectiveTickets();
-			totalEffectiveTickets = temp;
+		/**
+		 * The waiting thread in each slot, or <tt>null</tt> if the slot is free.
+		 */
+		private LotteryThreadState[] slotStates = new LotteryThreadState[initialSlots];
+
+		/**
+		 * The effective tickets counted for each slot.
+		 */
+		private long[] slotTickets = new long[initialSlots];
+
+		/**
+		 * A Fenwick tree over <tt>slotTickets</tt>. Element <i>i</i> (1-based)
+		 * holds the sum of the <i>i</i> &amp; -<i>i</i> slots ending at slot
+		 * <i>i</i>-1.
+		 */
+		private long[] tree = new long[initialSlots+1];
+
+		/**
+		 * Free slots, used as a stack.
+		 */
+		private int[] freeSlots = new int[initialSlots];
+		private int numFree = 0, numWaiting = 0, numSlotsUsed = 0;
+
+		/**
+		 * Draw a ticket uniformly from <tt>[0, totalEffectiveTickets)</tt>.
+		 */
+		private long drawTicket() {
+			if (totalEffectiveTickets <= Integer.MAX_VALUE)
+				return randomGenerator.nextInt((int) totalEffectiveTickets);
+			else
+				return Math.floorMod(randomGenerator.nextLong(), totalEffectiveTickets);
+		}
+
+		/**
+		 * Return the slot holding the specified ticket, that is, the first
+		 * slot whose prefix sum exceeds <tt>ticket</tt>.
+		 */
+		private int findSlot(long ticket) {
+			int index = 0;
+
+			for (int step = Integer.highestOneBit(slotStates.length); step > 0; step >>= 1) {
+				int next = index + step;
+				if (next <= slotStates.length && tree[next] <= ticket) {
+					index = next;
+					ticket -= tree[next];
+				}
+			}
+
+			return index;
 		}
 
-		void removeFromWaiting(LotteryThreadState lotteryThreadState) {
-			if (waiting.remove(lotteryThreadState)) {
-				updateEffectiveTickets();//TODO: probably can do a shorter update in the future
+		private void addToTree(int slot, long delta) {
+			for (int i = slot+1; i <= slotStates.length; i += i & -i)
+				tree[i] += delta;
+		}
 
-				if (lockingThread != null)
-					lockingThread.fullUpdateEffectiveTickets();
+		/**
+		 * Put a thread in a free slot, with the specified effective tickets.
+		 *
+		 * @return	the slot.
+		 */
+		int addWaiter(LotteryThreadState lts, long tickets) {
+			int slot;
+			if (numFree > 0) {
+				slot = freeSlots[--numFree];
+			}
+			else {
+				if (numSlotsUsed == slotStates.length)
+					grow();
+				slot = numSlotsUsed++;
 			}
+
+			slotStates[slot] = lts;
+			numWaiting++;
+			changeTickets(slot, tickets);
+
+			return slot;
+		}
+
+		/**
+		 * Free a slot, removing its tickets from the lottery.
+		 */
+		void removeWaiter(int slot) {
+			changeTickets(slot, -slotTickets[slot]);
+
+			slotStates[slot] = null;
+			numWaiting--;
+			freeSlots[numFree++] = slot;
+		}
+
+		/**
+		 * Change the effective tickets counted for a slot.
+		 */
+		void changeTickets(int slot, long delta) {
+			if (delta == 0)
+				return;
+
+			slotTickets[slot] += delta;
+			totalEffectiveTickets += delta;
+			addToTree(slot, delta);
 		}
 
+		private void grow() {
+			int capacity = 2*slotStates.length;
+
+			slotStates = Arrays.copyOf(slotStates, capacity);
+			slotTickets = Arrays.copyOf(slotTickets, capacity);
+			freeSlots = Arrays.copyOf(freeSlots, capacity);
+
+			// rebuild the tree in linear time
+			tree = new long[capacity+1];
+			for (int i = 1; i <= capacity; i++) {
+				tree[i] += slotTickets[i-1];
+				int parent = i + (i & -i);
+				if (parent <= capacity)
+					tree[parent] += tree[i];
+			}
+		}
 	}
 
 	protected static class LotteryThreadState {
@@ -225,46 +339,61 @@ public class LotteryScheduler extends PriorityScheduler {
 		}
 
 		void acquire(LotteryQueue lotteryQueue) {
+			if (waitingOn == lotteryQueue)
+				leave();
+
 			if (lotteryQueue.lockingThread != this) {
 
 				if (lotteryQueue.lockingThread != null)
 					lotteryQueue.lockingThread.release(lotteryQueue);
 
-
-				lotteryQueue.removeFromWaiting(this);
-
 				lotteryQueue.lockingThread = this;
 
-				acquired.add(lotteryQueue);
-				waiting.remove(lotteryQueue);
-
-				fullUpdateEffectiveTickets();
+				// the new owner collects the tickets of the remaining waiters
+				if (lotteryQueue.transferTickets) {
+					acquired.add(lotteryQueue);
+					addEffectiveTickets(lotteryQueue.totalEffectiveTickets);
+				}
 			}
 		}
 
 		private void release(LotteryQueue lotteryQueue) {
 			if (lotteryQueue.lockingThread == this) {
-				if (!acquired.remove(lotteryQueue))
-					System.out.println("Error : Release something not in the acquired set");
 				lotteryQueue.lockingThread = null;
-				fullUpdateEffectiveTickets();
+
+				if (acquired.remove(lotteryQueue))
+					addEffectiveTickets(-lotteryQueue.totalEffectiveTickets);
 			}
 		}
 		void waitForAccess(LotteryQueue lotteryQueue) {
 			release(lotteryQueue);
-			if (!lotteryQueue.waiting.contains(this)) {
-				waiting.add(lotteryQueue);
-				lotteryQueue.waiting.add(this);
+			if (waitingOn != lotteryQueue) {
+				Lib.assertTrue(waitingOn == null);
 
+				waitingOn = lotteryQueue;
+				waitingSlot = lotteryQueue.addWaiter(this, effectiveTickets);
 
 				if (lotteryQueue.transferTickets && lotteryQueue.lockingThread != null)
-					lotteryQueue.lockingThread.fullUpdateEffectiveTickets();
-				else
-					lotteryQueue.updateEffectiveTickets();
+					lotteryQueue.lockingThread.addEffectiveTickets(effectiveTickets);
 			}
 		}
+
+		/**
+		 * Stop waiting on <tt>waitingOn</tt>, withdrawing this thread's
+		 * tickets from the lottery and from the queue's owner.
+		 */
+		private void leave() {
+			LotteryQueue lotteryQueue = waitingOn;
+
+			lotteryQueue.removeWaiter(waitingSlot);
+			waitingOn = null;
+
+			if (lotteryQueue.transferTickets && lotteryQueue.lockingThread != null)
+				lotteryQueue.lockingThread.addEffectiveTickets(-effectiveTickets);
+		}
+
 		int getEffectiveTickets() {
-			return effectiveTickets;
+			return (int) Math.min(effectiveTickets, Integer.MAX_VALUE);
 		}
 
 		int getTickets() {
@@ -272,24 +401,34 @@ public class LotteryScheduler extends PriorityScheduler {
 		}
 
 		void setTickets(int tickets2) {
+			int delta = tickets2 - tickets;
 			tickets = tickets2;
-			fullUpdateEffectiveTickets();
+			addEffectiveTickets(delta);
 		}
 
-		private void fullUpdateEffectiveTickets() {
-			int temp = tickets;
+		/**
+		 * Change the effective tickets of this thread, and pass the change on
+		 * to the queue it waits on and to that queue's owner, and so on up
+		 * the chain. The walk stops if it comes back to a thread it already
+		 * changed, which can only happen if the threads are deadlocked.
+		 */
+		private void addEffectiveTickets(long delta) {
+			if (delta == 0)
+				return;
+
+			int stamp = ++updateStamp;
+
+			for (LotteryThreadState lts = this; lts != null && lts.lastUpdate != stamp; ) {
+				lts.lastUpdate = stamp;
+				lts.effectiveTickets += delta;
 
-			for (LotteryQueue lq : acquired)
-				if (lq.transferTickets)
-					for (LotteryThreadState lts : lq.waiting)
-						temp += lts.effectiveTickets;
+				LotteryQueue lotteryQueue = lts.waitingOn;
+				if (lotteryQueue == null)
+					break;
 
-			effectiveTickets = temp;
+				lotteryQueue.changeTickets(lts.waitingSlot, delta);
 
-			for (LotteryQueue lq : waiting) {
-				lq.updateEffectiveTickets();
-				if (lq.transferTickets && lq.lockingThread != null)
-					lq.lockingThread.fullUpdateEffectiveTickets();
+				lts = lotteryQueue.transferTickets ? lotteryQueue.lockingThread : null;
 			}
 		}
 		/**
@@ -298,9 +437,14 @@ public class LotteryScheduler extends PriorityScheduler {
 		private HashSet<LotteryQueue> acquired = new HashSet<LotteryQueue>();
 
 		/**
-		 * A set of <tt>LotteryQueue</tt>s that <tt>this</tt> is waiting in.
+		 * The <tt>LotteryQueue</tt> that <tt>this</tt> is waiting in, if any.
+		 */
+		private LotteryQueue waitingOn = null;
+
+		/**
+		 * The slot of <tt>this</tt> in <tt>waitingOn</tt>.
 		 */
-		private HashSet<LotteryQueue> waiting = new HashSet<LotteryQueue>();
+		private int waitingSlot;
 
 		/**
 		 * The actual number of tickets that <tt>this</tt> contains.
@@ -311,11 +455,21 @@ public class LotteryScheduler extends PriorityScheduler {
 		 * The effective number of tickets that <tt>this</tt> contains, including donations from
 		 * queues that <tt>this</tt> has acquired.
 		 */
-		private int effectiveTickets = priorityDefault;
+		private long effectiveTickets = priorityDefault;
 
 		/**
 		 * The <tt>KThread</tt> instance that <tt>this</tt> represents.
 		 */
 		private KThread thread;
+
+		/**
+		 * The value of <tt>updateStamp</tt> when <tt>this</tt> was last
+		 * changed by <tt>addEffectiveTickets()</tt>.
+		 */
+		private int lastUpdate = 0;
+
+		private static int updateStamp = 0;
 	}
-}
\ No newline at end of file
+
+	private static final int initialSlots = 8;
+}
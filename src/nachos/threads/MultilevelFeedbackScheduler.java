@@ -0,0 +1,256 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * A scheduler that adapts each thread's priority to its behavior, using a
+ * multilevel feedback queue.
+ *
+ * <p>
+ * Every thread is at one of several levels, and the next thread to be
+ * dequeued is always the thread that has been waiting longest at the highest
+ * level (level 0). A thread at level <i>n</i> has a quantum of
+ * <tt>MultilevelFeedbackScheduler.quantum</tt> &lt;&lt; <i>n</i> ticks: timer
+ * interrupts do not preempt it until it has used that many ticks at its level.
+ * A thread that is still running when a timer interrupt finds its quantum used
+ * up is preempted and drops one level, so CPU-bound threads sink and run in
+ * longer slices.
+ *
+ * <p>
+ * A thread that blocks (for example in <tt>Semaphore.P()</tt>,
+ * <tt>Lock.acquire()</tt>, or waiting for the console in
+ * <tt>SynchConsole</tt>) rises one level when it is made ready again, so
+ * interactive threads stay near the top. To prevent starvation, every
+ * <tt>MultilevelFeedbackScheduler.boostInterval</tt> ticks all threads are
+ * moved back to level 0.
+ */
+public class MultilevelFeedbackScheduler extends Scheduler {
+	/**
+	 * Allocate a new multilevel feedback queue scheduler.
+	 */
+	public MultilevelFeedbackScheduler() {
+		numLevels = Config.getInteger("MultilevelFeedbackScheduler.levels", 4);
+		quantum = Config.getInteger("MultilevelFeedbackScheduler.quantum", Stats.TimerTicks);
+		boostInterval = Config.getInteger("MultilevelFeedbackScheduler.boostInterval",
+				50 * Stats.TimerTicks);
+
+		Lib.assertTrue(numLevels > 0 && numLevels <= 31 && quantum > 0 && boostInterval > 0);
+
+		nextBoost = boostInterval;
+	}
+
+	/**
+	 * Allocate a new multilevel feedback thread queue.
+	 *
+	 * @param	transferPriority	ignored. Threads do not donate levels.
+	 * @return	a new multilevel feedback thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new FeedbackQueue();
+	}
+
+	/**
+	 * Return the priority of the specified thread, which is higher for higher
+	 * levels: <tt>numLevels-1</tt> for level 0, and 0 for the lowest level.
+	 */
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return numLevels - 1 - getFeedbackThreadState(thread).getLevel();
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	public void runningThread(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		long time = Machine.timer().getTime();
+
+		if (running != null)
+			running.charge(time);
+
+		running = getFeedbackThreadState(thread);
+		running.runningSince = time;
+	}
+
+	public boolean timerInterrupt(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		long time = Machine.timer().getTime();
+
+		if (time >= nextBoost) {
+			boostEpoch++;
+			nextBoost = time + boostInterval;
+		}
+
+		FeedbackThreadState state = getFeedbackThreadState(thread);
+		state.charge(time);
+
+		int level = state.getLevel();
+		if (state.used < ((long) quantum << level))
+			return false;
+
+		state.used = 0;
+		if (level < numLevels - 1)
+			state.level = level + 1;
+
+		return true;
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param	thread	the thread whose scheduling state to return.
+	 * @return	the scheduling state of the specified thread.
+	 */
+	protected FeedbackThreadState getFeedbackThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new FeedbackThreadState();
+
+		return (FeedbackThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> with one FIFO list per level.
+	 */
+	protected class FeedbackQueue extends ThreadQueue {
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		FeedbackQueue() {
+			levels = new LinkedList[numLevels];
+			for (int i = 0; i < numLevels; i++)
+				levels[i] = new LinkedList<KThread>();
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			FeedbackThreadState state = getFeedbackThreadState(thread);
+
+			// a thread made ready by another thread had blocked
+			if (thread != KThread.currentThread()) {
+				state.used = 0;
+				if (state.getLevel() > 0)
+					state.level--;
+			}
+
+			checkBoost();
+			levels[state.getLevel()].add(thread);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			checkBoost();
+
+			for (int i = 0; i < numLevels; i++) {
+				if (!levels[i].isEmpty())
+					return levels[i].removeFirst();
+			}
+
+			return null;
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+		}
+
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < numLevels; i++) {
+				if (levels[i].remove(thread))
+					return true;
+			}
+
+			return false;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < numLevels; i++) {
+				for (KThread thread : levels[i])
+					System.out.print(" " + thread + " (" + i + ")");
+			}
+			System.out.println();
+		}
+
+		/**
+		 * If all threads have been boosted since this queue was last used,
+		 * move every waiting thread to level 0, keeping higher levels first.
+		 */
+		private void checkBoost() {
+			if (epoch == boostEpoch)
+				return;
+
+			epoch = boostEpoch;
+
+			for (int i = 1; i < numLevels; i++) {
+				levels[0].addAll(levels[i]);
+				levels[i].clear();
+			}
+		}
+
+		private LinkedList<KThread>[] levels;
+		private int epoch = boostEpoch;
+	}
+
+	/**
+	 * The scheduling state of a thread under a multilevel feedback queue
+	 * scheduler.
+	 */
+	protected class FeedbackThreadState {
+		/**
+		 * Return the level of the associated thread, resetting it to 0 if all
+		 * threads have been boosted since it was last used.
+		 */
+		int getLevel() {
+			if (epoch != boostEpoch) {
+				epoch = boostEpoch;
+				level = 0;
+				used = 0;
+			}
+
+			return level;
+		}
+
+		/**
+		 * Add the ticks the associated thread has been running since it was
+		 * last charged to the ticks used at its current level.
+		 */
+		void charge(long time) {
+			getLevel();
+
+			used += time - runningSince;
+			runningSince = time;
+		}
+
+		/** The level of the associated thread. */
+		int level = 0;
+		/** The number of ticks used at the current level. */
+		long used = 0;
+		/** The time at which the thread was last charged. */
+		long runningSince = 0;
+
+		private int epoch = boostEpoch;
+	}
+
+	/** The number of levels. */
+	private int numLevels;
+	/** The quantum of a thread at level 0, in ticks. */
+	private int quantum;
+	/** The number of ticks between boosts. */
+	private int boostInterval;
+
+	/** The time of the next boost. */
+	private long nextBoost;
+	/** The number of boosts so far. */
+	private int boostEpoch = 0;
+
+	/** The state of the thread that is running. */
+	private FeedbackThreadState running = null;
+}
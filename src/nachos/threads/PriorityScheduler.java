@@ -2,7 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.Comparator;
+import java.util.LinkedList;
 import java.util.TreeSet;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -125,29 +125,16 @@ public class PriorityScheduler extends Scheduler {
 
 	/**
 	 * A <tt>ThreadQueue</tt> that sorts threads by priority.
+	 *
+	 * <p>
+	 * Waiting threads are kept in one FIFO list per priority level, and a
+	 * bitmap records which levels are non-empty, so adding, removing and
+	 * repositioning a thread all take constant time, no matter how many
+	 * threads are waiting.
 	 */
 	protected class PriorityQueue extends ThreadQueue {
-		private KThread owner;
-		private java.util.PriorityQueue<KThread> waitQueue;
-		public boolean transferPriority;
-
-
 		PriorityQueue(boolean transferPriority) {
 			this.transferPriority = transferPriority;
-			waitQueue = new java.util.PriorityQueue<KThread>(10, new Comparator<KThread>() {
-				@Override
-				public int compare(KThread o1, KThread o2) {
-					int p1 = getEffectivePriority(o1);
-					int p2 = getEffectivePriority(o2);
-					if(p1 == p2){
-						return 0;
-					}else if(p1 > p2){
-						return -1;
-					}else{
-						return 1;
-					}
-				}
-			});
 		}
 
 		public void waitForAccess(KThread thread) {
@@ -160,16 +147,32 @@ public class PriorityScheduler extends Scheduler {
 			getThreadState(thread).acquire(this);
 		}
 
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			if (state.queuedIn != this)
+				return false;
+
+			state.leave(this);
+			return true;
+		}
+
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			if(waitQueue.isEmpty()){
+
+			ThreadState next = pickNextThread();
+			if (next == null) {
+				if (owner != null) {
+					ThreadState previous = owner;
+					owner = null;
+					previous.release(this);
+				}
 				return null;
-			}else {
-				owner = waitQueue.poll();
-				return owner;
 			}
 
-			// implemented
+			next.acquire(this);
+			return next.thread;
 		}
 
 		/**
@@ -180,30 +183,109 @@ public class PriorityScheduler extends Scheduler {
 		 *		return.
 		 */
 		protected ThreadState pickNextThread() {
-			// implemented
-			return getThreadState(waitQueue.peek());
+			if (nonEmptyLevels == 0)
+				return null;
+
+			return heads[getMaxPriority()];
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
+
+			for (int level=priorityMaximum; level>=priorityMinimum; level--) {
+				for (ThreadState state=heads[level]; state!=null; state=state.nextWaiting)
+					System.out.print(" " + state.thread + " (" + level + ")");
+			}
+			System.out.println();
 		}
-		
-		public Integer getMaxPriority(){
-             
-            if(!waitQueue.isEmpty()){
-                    return getThreadState(waitQueue.peek()).getPriority();
-            }else{
-                    return null;
-            }
-    }
 
+		/**
+		 * Return the highest effective priority of any waiting thread.
+		 *
+		 * @return	the highest priority, or <tt>priorityMinimum</tt> if no
+		 *		thread is waiting.
+		 */
+		public int getMaxPriority() {
+			if (nonEmptyLevels == 0)
+				return priorityMinimum;
+
+			return 31 - Integer.numberOfLeadingZeros(nonEmptyLevels);
+		}
+
+		/**
+		 * Add a thread to the end of the list for its effective priority.
+		 */
+		void add(ThreadState state) {
+			Lib.assertTrue(state.queuedIn == null);
+
+			int level = state.getEffectivePriority();
+
+			state.queuedIn = this;
+			state.queuedPriority = level;
+			state.prevWaiting = tails[level];
+			state.nextWaiting = null;
+
+			if (tails[level] == null)
+				heads[level] = state;
+			else
+				tails[level].nextWaiting = state;
+			tails[level] = state;
+
+			nonEmptyLevels |= (1 << level);
+		}
+
+		/**
+		 * Remove a waiting thread from this queue.
+		 */
+		void remove(ThreadState state) {
+			Lib.assertTrue(state.queuedIn == this);
+
+			int level = state.queuedPriority;
+
+			if (state.prevWaiting == null)
+				heads[level] = state.nextWaiting;
+			else
+				state.prevWaiting.nextWaiting = state.nextWaiting;
+
+			if (state.nextWaiting == null)
+				tails[level] = state.prevWaiting;
+			else
+				state.nextWaiting.prevWaiting = state.prevWaiting;
+
+			if (heads[level] == null)
+				nonEmptyLevels &= ~(1 << level);
+
+			state.queuedIn = null;
+			state.prevWaiting = state.nextWaiting = null;
+		}
+
+		/**
+		 * Move a waiting thread whose effective priority has changed to the
+		 * end of the list for its new priority.
+		 */
+		void reposition(ThreadState state) {
+			if (state.queuedPriority == state.getEffectivePriority())
+				return;
+
+			remove(state);
+			add(state);
+		}
 
 		/**
 		 * <tt>true</tt> if this queue should transfer priority from waiting
 		 * threads to the owning thread.
 		 */
+		public boolean transferPriority;
+
+		/** The thread that most recently acquired this queue. */
+		private ThreadState owner = null;
 
+		/** The first and last waiting thread at each priority level. */
+		private ThreadState[] heads = new ThreadState[priorityMaximum+1];
+		private ThreadState[] tails = new ThreadState[priorityMaximum+1];
+
+		/** Bit <i>n</i> is set if a thread is waiting at priority <i>n</i>. */
+		private int nonEmptyLevels = 0;
 	}
 
 	/**
@@ -211,12 +293,18 @@ public class PriorityScheduler extends Scheduler {
 	 * priority, its effective priority, any objects it owns, and the queue
 	 * it's waiting for, if any.
 	 *
+	 * <p>
+	 * The effective priority is the maximum of the thread's own priority and
+	 * the highest effective priority waiting on any queue it holds that
+	 * transfers priority. It is cached, and only recomputed when it may have
+	 * changed. A change is then pushed along the chain of holders: the thread
+	 * is repositioned in the queue it waits on, and if that changes the
+	 * queue's highest priority, the queue's owner is updated in turn. The
+	 * walk stops at the first thread whose effective priority is unchanged.
+	 *
 	 * @see	nachos.threads.KThread#schedulingState
 	 */
 	protected class ThreadState {
-		protected int donation = 0;
-		protected int lastEffectivePriority = -1;
-		private PriorityQueue waitQueue;
 		/**
 		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
 		 * specified thread.
@@ -244,17 +332,7 @@ public class PriorityScheduler extends Scheduler {
 		 * @return	the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-
-			int maxPriority = waitQueue.getMaxPriority();
-			if(waitQueue == null){
-				return getPriority();
-			}
-			if(lastEffectivePriority < 1){
-				lastEffectivePriority = Math.max(maxPriority, priority+donation);
-			}
-
-			// implemented
-			return lastEffectivePriority;
+			return effectivePriority;
 		}
 
 		/**
@@ -267,8 +345,7 @@ public class PriorityScheduler extends Scheduler {
 				return;
 
 			this.priority = priority;
-			lastEffectivePriority = -1;
-			// implemented
+			updateEffectivePriority();
 		}
 
 		/**
@@ -284,8 +361,31 @@ public class PriorityScheduler extends Scheduler {
 		 * @see	nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
-			// implemented
-			this.waitQueue = waitQueue;
+			int oldMaxPriority = waitQueue.getMaxPriority();
+
+			waitQueue.add(this);
+
+			if (waitQueue.transferPriority && waitQueue.owner != null &&
+					waitQueue.getMaxPriority() != oldMaxPriority)
+				waitQueue.owner.updateEffectivePriority();
+		}
+
+		/**
+		 * Called when the associated thread stops waiting on
+		 * <tt>waitQueue</tt> without acquiring it. Its donation is withdrawn
+		 * from the queue's owner.
+		 *
+		 * @param	waitQueue	the queue the associated thread is
+		 *				waiting on.
+		 */
+		void leave(PriorityQueue waitQueue) {
+			int oldMaxPriority = waitQueue.getMaxPriority();
+
+			waitQueue.remove(this);
+
+			if (waitQueue.transferPriority && waitQueue.owner != null &&
+					waitQueue.getMaxPriority() != oldMaxPriority)
+				waitQueue.owner.updateEffectivePriority();
 		}
 
 		/**
@@ -299,14 +399,86 @@ public class PriorityScheduler extends Scheduler {
 		 * @see	nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			// implemented
-			donation = 0;
-			lastEffectivePriority = -1;
-		}	
+			if (queuedIn == waitQueue)
+				waitQueue.remove(this);
+
+			ThreadState previous = waitQueue.owner;
+			if (previous == this)
+				return;
+
+			waitQueue.owner = this;
+
+			if (previous != null)
+				previous.release(waitQueue);
+
+			// the new owner inherits the priority of the remaining waiters
+			if (waitQueue.transferPriority) {
+				held.add(waitQueue);
+				updateEffectivePriority();
+			}
+		}
+
+		/**
+		 * Called when another thread has acquired <tt>waitQueue</tt>, or when
+		 * it has been released with no thread waiting, so that the associated
+		 * thread no longer receives its donations.
+		 *
+		 * @param	waitQueue	the queue the associated thread no longer
+		 *				holds.
+		 */
+		void release(PriorityQueue waitQueue) {
+			if (held.remove(waitQueue))
+				updateEffectivePriority();
+		}
+
+		/**
+		 * Recompute the effective priority of the associated thread, and push
+		 * any change along the chain of threads holding the queues it is
+		 * transitively waiting on.
+		 */
+		void updateEffectivePriority() {
+			ThreadState state = this;
+
+			while (true) {
+				int newPriority = state.priority;
+				for (PriorityQueue waitQueue : state.held)
+					newPriority = Math.max(newPriority, waitQueue.getMaxPriority());
+
+				if (newPriority == state.effectivePriority)
+					return;
+
+				state.effectivePriority = newPriority;
+
+				PriorityQueue waitQueue = state.queuedIn;
+				if (waitQueue == null)
+					return;
+
+				int oldMaxPriority = waitQueue.getMaxPriority();
+				waitQueue.reposition(state);
+
+				if (!waitQueue.transferPriority || waitQueue.owner == null ||
+						waitQueue.getMaxPriority() == oldMaxPriority)
+					return;
+
+				state = waitQueue.owner;
+			}
+		}
 
 		/** The thread with which this object is associated. */	   
 		protected KThread thread;
 		/** The priority of the associated thread. */
-		protected int priority;
+		protected int priority = -1;
+		/** The effective priority of the associated thread. */
+		protected int effectivePriority = -1;
+
+		/** The queues held by the associated thread that transfer priority. */
+		protected LinkedList<PriorityQueue> held = new LinkedList<PriorityQueue>();
+
+		/** The queue the associated thread is waiting on, if any. */
+		PriorityQueue queuedIn = null;
+		/** The priority level under which the thread is queued. */
+		int queuedPriority;
+		/** The neighbors of the thread in its priority level's list. */
+		ThreadState prevWaiting = null, nextWaiting = null;
 	}
 }
@@ -154,4 +154,32 @@ public abstract class Scheduler {
     public boolean decreasePriority() {
 	return false;
     }
+
+    /**
+     * Notify the scheduler that the specified thread is about to run. Called
+     * by <tt>KThread.restoreState()</tt> on every context switch, with
+     * interrupts disabled. Schedulers that account for the time each thread
+     * actually runs can record the switch here. The default does nothing.
+     *
+     * @param	thread	the thread that is about to run.
+     */
+    public void runningThread(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+    }
+
+    /**
+     * Notify the scheduler that a timer interrupt occurred while the specified
+     * thread was running, and decide whether to preempt it. Called by
+     * <tt>Alarm.timerInterrupt()</tt>, with interrupts disabled. The default
+     * preempts the thread on every timer interrupt.
+     *
+     * @param	thread	the thread that was running.
+     * @return	<tt>true</tt> if the thread should yield now, or
+     *		<tt>false</tt> if it should keep running until a later timer
+     *		interrupt.
+     */
+    public boolean timerInterrupt(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	return true;
+    }
 }
@@ -48,6 +48,35 @@ public class Semaphore {
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Atomically wait for this semaphore to become non-zero and decrement it,
+     * giving up if that does not happen within the specified number of
+     * ticks.
+     *
+     * @param	ticks	the maximum number of clock ticks to wait. If not
+     *			positive, do not wait at all.
+     * @return	<tt>true</tt> if the semaphore was decremented, or
+     *		<tt>false</tt> if the wait timed out.
+     */
+    public boolean tryP(long ticks) {
+	boolean intStatus = Machine.interrupt().disable();
+	boolean decremented = true;
+
+	if (value > 0) {
+	    value--;
+	}
+	else if (ticks > 0) {
+	    waitQueue.waitForAccess(KThread.currentThread());
+	    decremented = ThreadedKernel.alarm.sleepInQueue(waitQueue, ticks);
+	}
+	else {
+	    decremented = false;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return decremented;
+    }
+
     /**
      * Atomically increment this semaphore and wake up at most one other thread
      * sleeping on this semaphore.
@@ -0,0 +1,474 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * A scheduler that gives threads proportional shares deterministically, using
+ * stride scheduling.
+ *
+ * <p>
+ * Like a lottery scheduler, a stride scheduler associates a number of tickets
+ * with each thread. Each thread also has a <i>stride</i>, inversely
+ * proportional to its tickets, and a <i>pass</i> in the queue it waits on.
+ * The next thread to be dequeued is always the waiting thread with the lowest
+ * pass (the one that has been waiting longest, among threads with equal
+ * passes), and its pass is then advanced by its stride. Over any interval,
+ * each thread receives its share of the dequeues of a queue to within one,
+ * rather than only on average.
+ *
+ * <p>
+ * A thread that joins a queue starts at the pass of the thread most recently
+ * dequeued from it, except that a thread rejoining the ready queue resumes
+ * from its own pass there if that is later, so it cannot gain by blocking.
+ * The ready queue is recognized as the queue a thread was last dequeued from
+ * when <tt>runningThread()</tt> is called for it. Dequeues from other queues,
+ * such as those of locks, do not count against its share.
+ *
+ * <p>
+ * Tickets are transferred through locks and joins the same way as in
+ * <tt>LotteryScheduler</tt>: a thread's effective tickets are its own tickets
+ * plus the effective tickets of every thread waiting on a queue it holds.
+ */
+public class StrideScheduler extends Scheduler {
+	/**
+	 * Allocate a new stride scheduler.
+	 */
+	public StrideScheduler() {
+	}
+
+	/**
+	 * Allocate a new stride thread queue.
+	 *
+	 * @param	transferPriority	<tt>true</tt> if this queue should
+	 *					transfer tickets from waiting threads
+	 *					to the owning thread.
+	 * @return	a new stride thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new StrideQueue(transferPriority);
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getStrideThreadState(thread).getTickets();
+	}
+
+	public void runningThread(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		// a thread is run after being dequeued from the ready queue
+		StrideThreadState sts = getStrideThreadState(thread);
+		if (sts.dequeuedFrom != null) {
+			sts.readyQueue = sts.dequeuedFrom;
+			sts.readyPass = sts.dequeuedPass;
+			sts.dequeuedFrom = null;
+		}
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getStrideThreadState(thread).getEffectiveTickets();
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum && priority <= priorityMaximum);
+
+		getStrideThreadState(thread).setTickets(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable(), returnBool = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMaximum)
+			returnBool = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return returnBool;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable(), returnBool = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMinimum)
+			returnBool = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return returnBool;
+	}
+
+	/**
+	 * The default number of tickets for a new thread.
+	 */
+	public static final int priorityDefault = 1;
+
+	/**
+	 * The minimum number of tickets that a thread can have.
+	 */
+	public static final int priorityMinimum = 1;
+
+	/**
+	 * The maximum number of tickets that a thread can have.
+	 */
+	public static final int priorityMaximum = Integer.MAX_VALUE;
+
+	/**
+	 * The stride of a thread with a single ticket. Strides are computed as
+	 * <tt>stride1 / tickets</tt>, so this bounds the relative rounding error.
+	 * It is small enough that a queue's passes cannot overflow in 2^43
+	 * dequeues.
+	 */
+	public static final long stride1 = 1L << 20;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param	thread	the thread whose scheduling state to return.
+	 * @return	the scheduling state of the specified thread.
+	 */
+	protected StrideThreadState getStrideThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new StrideThreadState(thread);
+
+		return (StrideThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that dequeues the waiting thread with the lowest
+	 * pass. The waiting threads are kept in a binary heap ordered by pass, so
+	 * selection takes O(log n) time.
+	 */
+	protected class StrideQueue extends ThreadQueue {
+		StrideQueue(boolean transferTickets) {
+			this.transferTickets = transferTickets;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getStrideThreadState(thread).waitForAccess(this);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (size == 0) {
+				if (lockingThread != null)
+					lockingThread.release(this);
+				return null;
+			}
+
+			StrideThreadState next = heap[0];
+
+			// threads that join later start no earlier than this pass
+			virtualTime = next.pass;
+
+			next.acquire(this);
+			next.dequeuedFrom = this;
+			next.dequeuedPass = next.pass + next.getStride();
+
+			return next.thread;
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getStrideThreadState(thread).acquire(this);
+		}
+
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			StrideThreadState sts = getStrideThreadState(thread);
+			if (sts.waitingOn != this)
+				return false;
+
+			sts.leave();
+			return true;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < size; i++)
+				System.out.print(" " + heap[i].thread + " (pass " + heap[i].pass + ")");
+			System.out.println();
+		}
+
+		void add(StrideThreadState sts) {
+			if (size == heap.length)
+				heap = Arrays.copyOf(heap, 2 * heap.length);
+
+			// a thread that fell behind, or is not rejoining the ready queue, starts now
+			if (sts.readyQueue == this)
+				sts.pass = Math.max(sts.readyPass, virtualTime);
+			else
+				sts.pass = virtualTime;
+			sts.arrival = numArrivals++;
+
+			heap[size] = sts;
+			sts.heapIndex = size;
+			siftUp(size++);
+
+			totalEffectiveTickets += sts.effectiveTickets;
+		}
+
+		void remove(StrideThreadState sts) {
+			int i = sts.heapIndex;
+
+			size--;
+			if (i < size) {
+				StrideThreadState moved = heap[size];
+				heap[i] = moved;
+				moved.heapIndex = i;
+
+				siftDown(i);
+				if (moved.heapIndex == i)
+					siftUp(i);
+			}
+			heap[size] = null;
+			sts.heapIndex = -1;
+
+			totalEffectiveTickets -= sts.effectiveTickets;
+		}
+
+		private boolean before(StrideThreadState a, StrideThreadState b) {
+			if (a.pass != b.pass)
+				return a.pass < b.pass;
+			else
+				return a.arrival < b.arrival;
+		}
+
+		private void siftUp(int i) {
+			StrideThreadState sts = heap[i];
+
+			while (i > 0) {
+				int parent = (i - 1) / 2;
+				if (!before(sts, heap[parent]))
+					break;
+
+				heap[i] = heap[parent];
+				heap[i].heapIndex = i;
+				i = parent;
+			}
+
+			heap[i] = sts;
+			sts.heapIndex = i;
+		}
+
+		private void siftDown(int i) {
+			StrideThreadState sts = heap[i];
+
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= size)
+					break;
+
+				if (child + 1 < size && before(heap[child + 1], heap[child]))
+					child++;
+
+				if (!before(heap[child], sts))
+					break;
+
+				heap[i] = heap[child];
+				heap[i].heapIndex = i;
+				i = child;
+			}
+
+			heap[i] = sts;
+			sts.heapIndex = i;
+		}
+
+		/**
+		 * The thread that holds <tt>this</tt>.
+		 */
+		private StrideThreadState lockingThread;
+
+		/**
+		 * A boolean to indicate whether or not <tt>this</tt> should transfer
+		 * tickets to <tt>lockingThread</tt>.
+		 */
+		private boolean transferTickets;
+
+		/**
+		 * The total number of effective tickets of all the waiting threads.
+		 */
+		private long totalEffectiveTickets = 0;
+
+		/**
+		 * The pass of the thread most recently dequeued.
+		 */
+		private long virtualTime = 0;
+
+		private StrideThreadState[] heap = new StrideThreadState[8];
+		private int size = 0;
+		private long numArrivals = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread under a stride scheduler.
+	 */
+	protected static class StrideThreadState {
+		StrideThreadState(KThread thread) {
+			this.thread = thread;
+		}
+
+		void acquire(StrideQueue strideQueue) {
+			if (waitingOn == strideQueue)
+				leave();
+
+			if (strideQueue.lockingThread != this) {
+				if (strideQueue.lockingThread != null)
+					strideQueue.lockingThread.release(strideQueue);
+
+				strideQueue.lockingThread = this;
+
+				// the new holder collects the tickets of the remaining waiters
+				if (strideQueue.transferTickets) {
+					acquired.add(strideQueue);
+					addEffectiveTickets(strideQueue.totalEffectiveTickets);
+				}
+			}
+		}
+
+		void release(StrideQueue strideQueue) {
+			if (strideQueue.lockingThread == this) {
+				strideQueue.lockingThread = null;
+
+				if (acquired.remove(strideQueue))
+					addEffectiveTickets(-strideQueue.totalEffectiveTickets);
+			}
+		}
+
+		void waitForAccess(StrideQueue strideQueue) {
+			release(strideQueue);
+
+			if (waitingOn != strideQueue) {
+				Lib.assertTrue(waitingOn == null);
+
+				waitingOn = strideQueue;
+				strideQueue.add(this);
+
+				if (strideQueue.transferTickets && strideQueue.lockingThread != null)
+					strideQueue.lockingThread.addEffectiveTickets(effectiveTickets);
+			}
+		}
+
+		private void leave() {
+			StrideQueue strideQueue = waitingOn;
+
+			strideQueue.remove(this);
+			waitingOn = null;
+
+			if (strideQueue.transferTickets && strideQueue.lockingThread != null)
+				strideQueue.lockingThread.addEffectiveTickets(-effectiveTickets);
+		}
+
+		int getTickets() {
+			return tickets;
+		}
+
+		int getEffectiveTickets() {
+			return (int) Math.min(effectiveTickets, Integer.MAX_VALUE);
+		}
+
+		void setTickets(int tickets) {
+			int delta = tickets - this.tickets;
+			this.tickets = tickets;
+			addEffectiveTickets(delta);
+		}
+
+		/**
+		 * Return the amount by which the pass of this thread advances each
+		 * time it is dequeued.
+		 */
+		long getStride() {
+			return Math.max(stride1 / effectiveTickets, 1);
+		}
+
+		/**
+		 * Change the effective tickets of this thread, and pass the change on
+		 * to the queue it waits on and to that queue's holder, and so on up
+		 * the chain. Only strides change, so no queue needs to be reordered.
+		 * The walk stops if it comes back to a thread it already changed,
+		 * which can only happen if the threads are deadlocked.
+		 */
+		private void addEffectiveTickets(long delta) {
+			if (delta == 0)
+				return;
+
+			int stamp = ++updateStamp;
+
+			for (StrideThreadState sts = this; sts != null && sts.lastUpdate != stamp; ) {
+				sts.lastUpdate = stamp;
+				sts.effectiveTickets += delta;
+
+				StrideQueue strideQueue = sts.waitingOn;
+				if (strideQueue == null)
+					break;
+
+				strideQueue.totalEffectiveTickets += delta;
+
+				sts = strideQueue.transferTickets ? strideQueue.lockingThread : null;
+			}
+		}
+
+		/**
+		 * The queues that <tt>this</tt> holds and that transfer tickets.
+		 */
+		private HashSet<StrideQueue> acquired = new HashSet<StrideQueue>();
+
+		/**
+		 * The queue that <tt>this</tt> is waiting in, if any.
+		 */
+		private StrideQueue waitingOn = null;
+
+		/**
+		 * The position of <tt>this</tt> in the heap of <tt>waitingOn</tt>.
+		 */
+		private int heapIndex = -1;
+
+		/**
+		 * The queue this thread was last dequeued from, until it runs, and
+		 * its pass there after the dequeue.
+		 */
+		private StrideQueue dequeuedFrom = null;
+		private long dequeuedPass;
+
+		/**
+		 * The ready queue, once this thread has been run from it, and this
+		 * thread's pass there after it was last dequeued.
+		 */
+		private StrideQueue readyQueue = null;
+		private long readyPass;
+
+		/**
+		 * The pass of this thread in its current queue, and the order in
+		 * which it joined that queue.
+		 */
+		private long pass = 0, arrival;
+
+		private int tickets = priorityDefault;
+		private long effectiveTickets = priorityDefault;
+
+		private KThread thread;
+
+		private int lastUpdate = 0;
+
+		private static int updateStamp = 0;
+	}
+}
@@ -1,5 +1,7 @@
 package nachos.threads;
 
+import nachos.machine.*;
+
 /**
  * Schedules access to some sort of resource with limited access constraints. A
  * thread queue can be used to share this limited access among multiple
@@ -91,6 +93,23 @@ public abstract class ThreadQueue {
      */
     public abstract void acquire(KThread thread);
 
+    /**
+     * Notify this thread queue that the specified thread has stopped waiting
+     * for access without receiving it, for example because a timed wait has
+     * expired. If the thread is waiting, it is removed, and no longer
+     * transfers priority to the thread holding access.
+     *
+     * <p>
+     * Thread queues that do not support this need not override it.
+     *
+     * @param	thread	the thread that has stopped waiting.
+     * @return	<tt>true</tt> if the thread was waiting in this queue.
+     */
+    public boolean remove(KThread thread) {
+	Lib.assertNotReached("thread queue does not support remove()");
+	return false;
+    }
+
     /**
      * Print out all the threads waiting for access, in no particular order.
      */
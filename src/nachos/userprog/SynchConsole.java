@@ -92,6 +92,22 @@ public class SynchConsole {
 	return new File(false, true);
     }
 
+    /**
+     * Return another <tt>OpenFile</tt> that can read or write this console
+     * just as the specified one can.
+     *
+     * @param	file	a file returned by <tt>openForReading()</tt> or
+     *			<tt>openForWriting()</tt>.
+     * @return	a new file for this console, or <tt>null</tt> if
+     *		<tt>file</tt> is not one of this console's files.
+     */
+    public OpenFile duplicate(OpenFile file) {
+	if (!(file instanceof File) || ((File) file).console() != this)
+	    return null;
+
+	return new File(((File) file).canRead, ((File) file).canWrite);
+    }
+
     private void sendInterrupt() {
 	writeWait.V();
     }
@@ -142,6 +158,10 @@ public class SynchConsole {
 	    return length;
 	}
 
+	private SynchConsole console() {
+	    return SynchConsole.this;
+	}
+
 	private boolean canRead, canWrite;
     }
 }
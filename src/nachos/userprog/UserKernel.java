@@ -1,5 +1,6 @@
 package nachos.userprog;
 
+import java.util.HashMap;
 import java.util.LinkedList;
 
 import nachos.machine.*;
@@ -34,6 +35,9 @@ public class UserKernel extends ThreadedKernel {
 		for (int currentPageIndex = 0; currentPageIndex < Machine.processor().getNumPhysPages(); currentPageIndex++)
 			freePages.add(new TranslationEntry(0, currentPageIndex, false, false, false, false));
 
+		pageReferences = new int[Machine.processor().getNumPhysPages()];
+		textKeys = new String[Machine.processor().getNumPhysPages()];
+
 		freePagesLock = new Lock();
 	}
 
@@ -108,7 +112,14 @@ public class UserKernel extends ThreadedKernel {
 		KThread.currentThread().finish();
 	}
 
-	TranslationEntry[] acquirePages(int numPages) throws InadequatePagesException {
+	/**
+	 * Take the specified number of free physical pages.
+	 *
+	 * @param	numPages	the number of pages to take.
+	 * @return	a valid entry for each page, with its <tt>ppn</tt> set.
+	 * @exception	InadequatePagesException	if fewer pages are free.
+	 */
+	protected TranslationEntry[] acquirePages(int numPages) throws InadequatePagesException {
 		TranslationEntry[] returnPages = null;
 
 		freePagesLock.acquire();
@@ -119,6 +130,7 @@ public class UserKernel extends ThreadedKernel {
 			for (int i = 0; i < numPages; ++i) {
 				returnPages[i] = freePages.remove();
 				returnPages[i].valid = true;
+				pageReferences[returnPages[i].ppn] = 1;
 			}
 		}
 
@@ -130,17 +142,176 @@ public class UserKernel extends ThreadedKernel {
 			return returnPages;
 	}
 
-	void releasePages(TranslationEntry[] pageTable) {
+	/**
+	 * Release pages taken with <tt>acquirePages()</tt> or shared with
+	 * <tt>sharePages()</tt>. A page returns to the free set once every
+	 * process that shared it has released it.
+	 *
+	 * @param	pageTable	the entries of the pages to release.
+	 */
+	protected void releasePages(TranslationEntry[] pageTable) {
 		freePagesLock.acquire();
 
 		for (TranslationEntry te : pageTable) {
-			freePages.add(te);
+			if (te.valid && --pageReferences[te.ppn] == 0) {
+				// every page of a shared text has the same count
+				if (textKeys[te.ppn] != null)
+					sharedText.remove(textKeys[te.ppn]);
+				textKeys[te.ppn] = null;
+
+				freePages.add(new TranslationEntry(0, te.ppn, false, false, false, false));
+			}
 			te.valid = false;
 		}
 
 		freePagesLock.release();
 	}
 
+	/**
+	 * Share the specified pages with another process, which must release
+	 * them with <tt>releasePages()</tt> too.
+	 *
+	 * @param	pageTable	the entries of the pages to share.
+	 */
+	protected void sharePages(TranslationEntry[] pageTable) {
+		freePagesLock.acquire();
+
+		for (TranslationEntry te : pageTable) {
+			if (te.valid)
+				pageReferences[te.ppn]++;
+		}
+
+		freePagesLock.release();
+	}
+
+	/**
+	 * Share the read-only pages of an executable, if another process running
+	 * it has them loaded. The pages must be released with
+	 * <tt>releasePages()</tt>.
+	 *
+	 * @param	key	the executable's key, from <tt>executableKey()</tt>.
+	 * @return	a read-only entry, with its <tt>vpn</tt> set, for each
+	 *		read-only page, or <tt>null</tt> if the pages are not loaded.
+	 */
+	protected TranslationEntry[] shareText(String key) {
+		freePagesLock.acquire();
+
+		TranslationEntry[] pages = null;
+
+		int[] ppns = sharedText.get(key);
+		if (ppns != null) {
+			int numPages = 0;
+			for (int vpn = 0; vpn < ppns.length; vpn++) {
+				if (ppns[vpn] != -1)
+					numPages++;
+			}
+
+			pages = new TranslationEntry[numPages];
+			for (int vpn = 0, i = 0; vpn < ppns.length; vpn++) {
+				if (ppns[vpn] != -1) {
+					pages[i++] = new TranslationEntry(vpn, ppns[vpn], true, true, false, false);
+					pageReferences[ppns[vpn]]++;
+				}
+			}
+		}
+
+		freePagesLock.release();
+
+		return pages;
+	}
+
+	/**
+	 * Offer the read-only pages of a process that has just loaded an
+	 * executable to the processes that run it next. Nothing changes if
+	 * another process offered the same executable first.
+	 *
+	 * @param	key	the executable's key, from <tt>executableKey()</tt>.
+	 * @param	pageTable	the process's page table.
+	 */
+	protected void addText(String key, TranslationEntry[] pageTable) {
+		freePagesLock.acquire();
+
+		if (!sharedText.containsKey(key)) {
+			int[] ppns = new int[pageTable.length];
+			boolean anyReadOnly = false;
+
+			for (int vpn = 0; vpn < pageTable.length; vpn++) {
+				ppns[vpn] = -1;
+				if (pageTable[vpn].valid && pageTable[vpn].readOnly) {
+					ppns[vpn] = pageTable[vpn].ppn;
+					textKeys[ppns[vpn]] = key;
+					anyReadOnly = true;
+				}
+			}
+
+			if (anyReadOnly)
+				sharedText.put(key, ppns);
+		}
+
+		freePagesLock.release();
+	}
+
+	/**
+	 * Return the key under which the read-only pages of an executable are
+	 * shared. Two executables have the same key only if they have the same
+	 * name and length, and no user process has written, truncated or
+	 * removed the file in between.
+	 *
+	 * @param	name	the name of the executable.
+	 * @param	executable	the open executable.
+	 * @return	the executable's key.
+	 */
+	public static String executableKey(String name, OpenFile executable) {
+		Integer version = fileVersions.get(name);
+
+		return name + ";" + (version == null ? 0 : version) + ";" + executable.length();
+	}
+
+	/**
+	 * Record that a user process is about to change or remove the file with
+	 * the specified name, so an executable loaded from it later gets a new
+	 * key. Does not block.
+	 *
+	 * @param	name	the name of the file.
+	 */
+	public static void fileModified(String name) {
+		Integer version = fileVersions.get(name);
+
+		fileVersions.put(name, (version == null ? 0 : version) + 1);
+	}
+
+	/**
+	 * Give the process that owns the specified entry its own copy of the
+	 * page, if the page is shared: takes a free page, copies the shared page
+	 * into it, points the entry at it and releases the shared page. Does
+	 * nothing if no other process shares the page.
+	 *
+	 * @param	entry	the entry of the page.
+	 * @exception	InadequatePagesException	if the page is shared and no
+	 *						page is free.
+	 */
+	protected void unsharePage(TranslationEntry entry) throws InadequatePagesException {
+		freePagesLock.acquire();
+
+		if (pageReferences[entry.ppn] > 1) {
+			if (freePages.isEmpty()) {
+				freePagesLock.release();
+				throw new InadequatePagesException();
+			}
+
+			int ppn = freePages.remove().ppn;
+			byte[] memory = Machine.processor().getMemory();
+			System.arraycopy(memory, entry.ppn*Processor.pageSize,
+					memory, ppn*Processor.pageSize, Processor.pageSize);
+
+			pageReferences[entry.ppn]--;
+			pageReferences[ppn] = 1;
+			entry.ppn = ppn;
+		}
+
+		freePagesLock.release();
+	}
+
 	/**
 	 * Terminate this kernel. Never returns.
 	 */
@@ -164,7 +335,24 @@ public class UserKernel extends ThreadedKernel {
 	 */
 	private Lock freePagesLock;
 
-	static class InadequatePagesException extends Exception {
+	/**
+	 * The number of processes that map each physical page.
+	 */
+	private int[] pageReferences;
+
+	/**
+	 * The physical page of each read-only page of each loaded executable,
+	 * indexed by key and then by vpn, and the key of each of those pages.
+	 */
+	private HashMap<String, int[]> sharedText = new HashMap<String, int[]>();
+	private String[] textKeys;
+
+	/**
+	 * The number of times each file has been changed by a user process.
+	 */
+	private static HashMap<String, Integer> fileVersions = new HashMap<String, Integer>();
+
+	protected static class InadequatePagesException extends Exception {
 		
 		private static final long serialVersionUID = 6256028192007727092L;
 	}
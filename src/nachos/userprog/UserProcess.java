@@ -6,9 +6,7 @@ import nachos.userprog.*;
 import nachos.userprog.UserKernel.InadequatePagesException;
 
 import java.io.EOFException;
-import java.util.Collection;
 import java.util.HashMap;
-import java.util.LinkedList;
 
 /**
  * Encapsulates the state of a user process that is not contained in its
@@ -97,6 +95,10 @@ public class UserProcess {
 	 * without including the null terminator. If no null terminator is found,
 	 * returns <tt>null</tt>.
 	 *
+	 * <p>
+	 * The terminator is searched for directly in physical memory, one page at
+	 * a time, so only the string itself is ever copied.
+	 *
 	 * @param	vaddr	the starting virtual address of the null-terminated
 	 *			string.
 	 * @param	maxLength	the maximum number of characters in the string,
@@ -107,13 +109,37 @@ public class UserProcess {
 	public String readVirtualMemoryString(int vaddr, int maxLength) {
 		Lib.assertTrue(maxLength >= 0);
 
-		byte[] bytes = new byte[maxLength+1];
+		byte[] memory = Machine.processor().getMemory();
+
+		for (int scanned = 0; scanned <= maxLength; ) {
+			int address = vaddr + scanned;
+
+			TranslationEntry entry = translate(Processor.pageFromAddress(address), false);
+			if (entry == null)
+				return null;
+
+			int start = entry.ppn*pageSize + Processor.offsetFromAddress(address);
+			int end = start + Math.min(pageSize - Processor.offsetFromAddress(address),
+					maxLength + 1 - scanned);
+
+			entry.used = true;
+
+			for (int paddr = start; paddr < end; paddr++) {
+				if (memory[paddr] != 0)
+					continue;
+
+				int length = scanned + (paddr - start);
 
-		int bytesRead = readVirtualMemory(vaddr, bytes);
+				// the whole string lies in this page
+				if (scanned == 0)
+					return new String(memory, start, length);
 
-		for (int length=0; length<bytesRead; length++) {
-			if (bytes[length] == 0)
-				return new String(bytes, 0, length);
+				byte[] bytes = new byte[length];
+				readVirtualMemory(vaddr, bytes);
+				return new String(bytes);
+			}
+
+			scanned += end - start;
 		}
 
 		return null;
@@ -131,8 +157,6 @@ public class UserProcess {
 		return readVirtualMemory(vaddr, data, 0, data.length);
 	}
 
-
-
 	/**
 	 * Transfer data from this process's virtual memory to the specified array.
 	 * This method handles address translation details. This method must
@@ -149,25 +173,9 @@ public class UserProcess {
 	 */
 	public int readVirtualMemory(int vaddr, byte[] data, int offset,
 			int length) {
-		Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length && memoryAccessLock != null);
-		if (!validAddress(vaddr)) {
-			return 0;
-		}
-		else {
-			Collection<MemoryAccess> memoryAccesses = createMemoryAccesses(vaddr, data, offset, length, AccessType.READ);
-
-			int bytesRead = 0, temp;
+		Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
-			memoryAccessLock.acquire();
-			for (MemoryAccess ma : memoryAccesses) {
-				temp = ma.executeAccess();
-
-				if (temp == 0) break;
-				else bytesRead += temp;
-			}
-			memoryAccessLock.release();
-			return bytesRead;
-		}
+		return copyVirtualMemory(vaddr, data, offset, length, false);
 	}
 
 	/**
@@ -198,89 +206,94 @@ public class UserProcess {
 	 * @return	the number of bytes successfully transferred.
 	 */
 	public int writeVirtualMemory(int vaddr, byte[] data, int offset, int length) {
-		Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length && memoryAccessLock != null);
-		if (!validAddress(vaddr)) {
-			return 0;
-		} 
-		else {
-			Collection<MemoryAccess> memoryAccesses = createMemoryAccesses(vaddr, data, offset, length, AccessType.WRITE);
-
-			int bytesWritten = 0, temp;
-			memoryAccessLock.acquire();
-			for (MemoryAccess ma : memoryAccesses) {
-				temp = ma.executeAccess();
-				if (temp == 0) break;
-				else bytesWritten += temp;
-			}
-			memoryAccessLock.release();
+		Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
 
-			return bytesWritten;
-		}
+		return copyVirtualMemory(vaddr, data, offset, length, true);
 	}
 
-	private Collection<MemoryAccess> createMemoryAccesses(int vaddr, byte[] data, int offset, int length, AccessType accessType) {
-		LinkedList<MemoryAccess> returnList = new LinkedList<MemoryAccess>();
-
-		while (length > 0) {
-			int vpn = Processor.pageFromAddress(vaddr);
-
-			int potentialPageAccess = Processor.pageSize - Processor.offsetFromAddress(vaddr);
-			int accessSize = length < potentialPageAccess ? length : potentialPageAccess;
+	/**
+	 * Copy between virtual memory and an array, walking the page table one
+	 * page at a time and copying each page's share of the transfer directly
+	 * to or from physical memory. Stops at the first page that cannot be
+	 * accessed. Nothing blocks between looking a page up and copying it, so
+	 * no other thread can take the page away in between.
+	 *
+	 * @return	the number of bytes successfully transferred.
+	 */
+	private int copyVirtualMemory(int vaddr, byte[] data, int offset, int length,
+			boolean writing) {
+		byte[] memory = Machine.processor().getMemory();
 
-			returnList.add(new MemoryAccess(accessType, data, vpn, offset, Processor.offsetFromAddress(vaddr), accessSize));
-			length -= accessSize;
-			vaddr += accessSize;
-			offset += accessSize;
-		}
+		int transferred = 0;
+		while (transferred < length) {
+			int address = vaddr + transferred;
 
-		return returnList;
-	}
+			TranslationEntry entry = translate(Processor.pageFromAddress(address), writing);
+			if (entry == null)
+				break;
 
-	protected class MemoryAccess {
-		protected MemoryAccess(AccessType at, byte[] d, int _vpn, int dStart, int pStart, int len) {
-			accessType = at;
-			data = d;
-			vpn = _vpn;
-			dataStart = dStart;
-			pageStart = pStart;
-			length = len;
-		}
+			int pageOffset = Processor.offsetFromAddress(address);
+			int paddr = entry.ppn*pageSize + pageOffset;
+			int amount = Math.min(length - transferred, pageSize - pageOffset);
 
-		public int executeAccess() {
-			if (translationEntry == null)translationEntry = pageTable[vpn];
-			if (translationEntry.valid) {
-				if (accessType == AccessType.READ) {
-					System.arraycopy(Machine.processor().getMemory(), pageStart + (Processor.pageSize * translationEntry.ppn), data, dataStart, length);
-					translationEntry.used = true;
-					return length;
-				} else if (!translationEntry.readOnly && accessType == AccessType.WRITE) {
-					System.arraycopy(data, dataStart, Machine.processor().getMemory(), pageStart + (Processor.pageSize * translationEntry.ppn), length);
-					translationEntry.used = translationEntry.dirty = true;
-					return length;
-				}
+			if (writing) {
+				System.arraycopy(data, offset + transferred, memory, paddr, amount);
+				entry.dirty = true;
 			}
+			else {
+				System.arraycopy(memory, paddr, data, offset + transferred, amount);
+			}
+			entry.used = true;
 
-			return 0;
+			transferred += amount;
 		}
 
-		protected byte[] data;
-
-		protected AccessType accessType;
-
-		protected TranslationEntry translationEntry;
+		return transferred;
+	}
 
-		protected int dataStart;
+	/**
+	 * Return the page table entry through which the kernel can access the
+	 * specified virtual page of this process, or <tt>null</tt> if the page
+	 * cannot be accessed. A page shared copy-on-write is copied first if it
+	 * will be written. Subclasses that do not keep every page resident can
+	 * override this to bring the page in first.
+	 *
+	 * @param	vpn	the virtual page to access.
+	 * @param	writing	<tt>true</tt> if the page will be written.
+	 * @return	a valid entry for the page, or <tt>null</tt>.
+	 */
+	protected TranslationEntry translate(int vpn, boolean writing) {
+		if (pageTable == null || vpn < 0 || vpn >= pageTable.length)
+			return null;
 
-		protected int pageStart;
+		TranslationEntry entry = pageTable[vpn];
+		if (!entry.valid)
+			return null;
+		if (writing && entry.readOnly && !copySharedPage(vpn))
+			return null;
 
-		protected int length;
+		return entry;
+	}
 
-		protected int vpn;
+	/**
+	 * Keep the page behind the specified entry, returned by
+	 * <tt>translate()</tt>, in physical memory until <tt>unpinPage()</tt> is
+	 * called, while the kernel transfers data with it and may block. Every
+	 * page stays in physical memory here, so this does nothing; subclasses
+	 * that evict pages must override it, and must not block.
+	 *
+	 * @param	entry	the entry of the page to pin.
+	 */
+	protected void pinPage(TranslationEntry entry) {
 	}
 
-	protected static enum AccessType {
-		READ, WRITE
-	};
+	/**
+	 * Undo one call to <tt>pinPage()</tt>.
+	 *
+	 * @param	entry	the entry of the page to unpin.
+	 */
+	protected void unpinPage(TranslationEntry entry) {
+	}
 
 	/**
 	 * Load the executable with the specified name into this process, and
@@ -301,6 +314,8 @@ public class UserProcess {
 			return false;
 		}
 
+		executableKey = UserKernel.executableKey(name, executable);
+
 		try {
 			coff = new Coff(executable);
 		}
@@ -379,24 +394,62 @@ public class UserProcess {
 	 * memory. If this returns successfully, the process will definitely be
 	 * run (this is the last step in process initialization that can fail).
 	 *
+	 * <p>
+	 * The read-only sections are shared by every process running the same
+	 * executable: if another process has them loaded, their pages are
+	 * mapped instead of loaded again.
+	 *
 	 * @return	<tt>true</tt> if the sections were successfully loaded.
 	 */
 	protected boolean loadSections() {
 		try {
-			pageTable = ((UserKernel) Kernel.kernel).acquirePages(numPages);
+			UserKernel kernel = (UserKernel) Kernel.kernel;
+
+			pageTable = new TranslationEntry[numPages];
 
-			for (int i = 0; i < pageTable.length; i++)
-				pageTable[i].vpn = i;
+			TranslationEntry[] text = kernel.shareText(executableKey);
+			int numTextPages = 0;
+			if (text != null) {
+				for (TranslationEntry entry : text)
+					pageTable[entry.vpn] = entry;
+				numTextPages = text.length;
+			}
+
+			TranslationEntry[] pages;
+			try {
+				pages = kernel.acquirePages(numPages - numTextPages);
+			} catch (InadequatePagesException a) {
+				if (text != null)
+					kernel.releasePages(text);
+				throw a;
+			}
+
+			for (int vpn = 0, i = 0; vpn < numPages; vpn++) {
+				if (pageTable[vpn] == null) {
+					pageTable[vpn] = pages[i++];
+					pageTable[vpn].vpn = vpn;
+				}
+			}
 
 			for (int sectionNumber = 0; sectionNumber < coff.getNumSections(); sectionNumber++) {
 				CoffSection section = coff.getSection(sectionNumber);
+				int firstVPN = section.getFirstVPN();
+
+				if (section.isReadOnly() && pageTable[firstVPN].readOnly) {
+					Lib.debug(dbgProcess, "\tsharing " + section.getName() + " section (" + section.getLength() + " pages)");
+					continue;
+				}
 
 				Lib.debug(dbgProcess, "\tinitializing " + section.getName() + " section (" + section.getLength() + " pages)");
 
-				int firstVPN = section.getFirstVPN();
-				for (int i = 0; i < section.getLength(); i++)
+				for (int i = 0; i < section.getLength(); i++) {
 					section.loadPage(i, pageTable[i+firstVPN].ppn);
+					pageTable[i+firstVPN].readOnly = section.isReadOnly();
+				}
 			}
+
+			if (text == null)
+				kernel.addText(executableKey, pageTable);
 		} catch (InadequatePagesException a) {
 			coff.close();
 			Lib.debug(dbgProcess, "\tinsufficient physical memory");
@@ -419,16 +472,81 @@ public class UserProcess {
 		}
 	}    
 
+	/**
+	 * Give the specified child, forked from this process, the same address
+	 * space as this process. The pages are shared copy-on-write: every
+	 * writable page becomes read-only in both processes, and the first one
+	 * to write it gets its own copy of it.
+	 *
+	 * @param	child	the new process.
+	 */
+	protected void forkSections(UserProcess child) {
+		if (copyOnWrite == null)
+			copyOnWrite = new boolean[numPages];
+
+		child.coff = coff;
+		child.pageTable = new TranslationEntry[numPages];
+		child.copyOnWrite = new boolean[numPages];
+
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			TranslationEntry entry = pageTable[vpn];
+
+			if (!entry.readOnly) {
+				entry.readOnly = true;
+				copyOnWrite[vpn] = true;
+			}
+
+			child.pageTable[vpn] = new TranslationEntry(vpn, entry.ppn, entry.valid, true, false, false);
+			child.copyOnWrite[vpn] = copyOnWrite[vpn];
+		}
+
+		((UserKernel) Kernel.kernel).sharePages(pageTable);
+	}
+
+	/**
+	 * Make a page that this process shares copy-on-write writable, copying
+	 * it first if another process still shares it. Called when the page is
+	 * written, by the kernel or by the program; subclasses that override
+	 * <tt>forkSections()</tt> must override this too.
+	 *
+	 * @param	vpn	the page to copy.
+	 * @return	<tt>true</tt> if the page is now writable, or <tt>false</tt>
+	 *		if it is not copy-on-write or no physical page was free.
+	 */
+	protected boolean copySharedPage(int vpn) {
+		if (copyOnWrite == null || vpn < 0 || vpn >= copyOnWrite.length || !copyOnWrite[vpn])
+			return false;
+
+		try {
+			((UserKernel) Kernel.kernel).unsharePage(pageTable[vpn]);
+		} catch (InadequatePagesException e) {
+			Lib.debug(dbgProcess, "\tno physical page to copy vpn " + vpn + " to");
+			return false;
+		}
+
+		pageTable[vpn].readOnly = false;
+		copyOnWrite[vpn] = false;
+
+		return true;
+	}
+
 	/**
 	 * Initialize the processor's registers in preparation for running the
 	 * program loaded into this process. Set the PC register to point at the
 	 * start function, set the stack pointer register to point at the top of
 	 * the stack, set the A0 and A1 registers to argc and argv, respectively,
-	 * and initialize all other registers to 0.
+	 * and initialize all other registers to 0. A forked process instead
+	 * starts with its parent's registers at the fork.
 	 */
 	public void initRegisters() {
 		Processor processor = Machine.processor();
 
+		if (forkedRegisters != null) {
+			for (int i=0; i<Processor.numUserRegisters; i++)
+				processor.writeRegister(i, forkedRegisters[i]);
+			return;
+		}
+
 		// by default, everything's 0
 		for (int i=0; i<processor.numUserRegisters; i++)
 			processor.writeRegister(i, 0);
@@ -519,6 +637,9 @@ public class UserProcess {
 
 		if (!FileRef.referenceFile(fileName)) return -1;
 
+		if (create)
+			UserKernel.fileModified(fileName);
+
 		OpenFile file = UserKernel.fileSystem.open(fileName, create);
 
 		if (file == null) {
@@ -545,22 +666,10 @@ public class UserProcess {
 	private int handleRead(int fileDesc, int bufferPtr, int size) {
 		if (!validAddress(bufferPtr))
 			return terminate();
-		if (!validFileDescriptor(fileDesc))
-			return -1;
-
-		byte buffer[] = new byte[size];
-		int bytesRead = fileTable[fileDesc].read(buffer, 0, size);
-
-
-		if (bytesRead == -1)
+		if (!validFileDescriptor(fileDesc) || size < 0)
 			return -1;
 
-		int bytesWritten = writeVirtualMemory(bufferPtr, buffer, 0, bytesRead);
-
-		if (bytesWritten != bytesRead)
-			return -1;
-
-		return bytesRead;
+		return transferFile(fileTable[fileDesc], bufferPtr, size, true);
 	}
 
 	/**
@@ -577,14 +686,198 @@ public class UserProcess {
 	private int handleWrite(int fileDesc, int bufferPtr, int size) {
 		if (!validAddress(bufferPtr))
 			return terminate();
-		if (!validFileDescriptor(fileDesc))
+		if (!validFileDescriptor(fileDesc) || size < 0)
+			return -1;
+
+		UserKernel.fileModified(fileTable[fileDesc].getName());
+
+		return transferFile(fileTable[fileDesc], bufferPtr, size, false);
+	}
+
+	/**
+	 * Read data from an open file into several buffers, in order, with a
+	 * single read of the file for each staging chunk
+	 * @param fileDesc
+	 * File descriptor
+	 * @param iovPtr
+	 * Pointer to an array of iovec structures in virtual memory
+	 * @param iovCount
+	 * Number of iovec structures
+	 * @return
+	 * Number of bytes read, or -1 on error
+	 */
+	private int handleReadv(int fileDesc, int iovPtr, int iovCount) {
+		return transferVector(fileDesc, iovPtr, iovCount, true);
+	}
+
+	/**
+	 * Write data from several buffers, in order, into an open file with a
+	 * single write of the file for each staging chunk
+	 * @param fileDesc
+	 * File descriptor
+	 * @param iovPtr
+	 * Pointer to an array of iovec structures in virtual memory
+	 * @param iovCount
+	 * Number of iovec structures
+	 * @return
+	 * Number of bytes successfully written, or -1 on error
+	 */
+	private int handleWritev(int fileDesc, int iovPtr, int iovCount) {
+		return transferVector(fileDesc, iovPtr, iovCount, false);
+	}
+
+	/**
+	 * Transfer data between an open file and the buffers described by an
+	 * array of iovec structures, in order. The buffers are gathered into, or
+	 * scattered from, a kernel staging buffer of at most
+	 * <tt>maxStagingSize</tt> bytes, so that the file sees a single read or
+	 * write for each chunk that fits in it, instead of one for each buffer.
+	 * Stops at the first chunk or buffer that is not transferred completely,
+	 * and returns the number of bytes the file transferred up to there.
+	 */
+	private int transferVector(int fileDesc, int iovPtr, int iovCount, boolean reading) {
+		if (!validAddress(iovPtr))
+			return terminate();
+		if (!validFileDescriptor(fileDesc) || iovCount < 0 || iovCount > maxIOVecs)
+			return -1;
+
+		byte[] iovecs = new byte[iovCount*iovecSize];
+		if (readVirtualMemory(iovPtr, iovecs) != iovecs.length)
+			return -1;
+
+		long total = 0;
+		for (int i = 0; i < iovCount; i++) {
+			int length = Lib.bytesToInt(iovecs, i*iovecSize + 4);
+			if (length < 0)
+				return -1;
+			total += length;
+		}
+
+		// the number of bytes transferred must fit in the return value
+		if (total > Integer.MAX_VALUE)
 			return -1;
 
-		byte buffer[] = new byte[size];
-		int bytesRead = readVirtualMemory(bufferPtr, buffer);
-		int bytesWritten = fileTable[fileDesc].write(buffer, 0, bytesRead);
+		OpenFile file = fileTable[fileDesc];
+
+		if (!reading)
+			UserKernel.fileModified(file.getName());
+
+		byte[] buffer = new byte[(int) Math.min(total, maxStagingSize)];
+
+		// the next byte to transfer is at offset in buffer i
+		int i = 0, offset = 0;
+		int transferred = 0;
+
+		while (transferred < total) {
+			int chunk = (int) Math.min(total - transferred, buffer.length);
+
+			if (!reading) {
+				int gathered = 0;
+				while (gathered < chunk) {
+					int base = Lib.bytesToInt(iovecs, i*iovecSize);
+					int length = Lib.bytesToInt(iovecs, i*iovecSize + 4);
+					int amount = Math.min(length - offset, chunk - gathered);
+
+					int count = readVirtualMemory(base + offset, buffer, gathered, amount);
+					gathered += count;
+					offset += count;
+					if (count < amount)
+						break;
+
+					if (offset == length) {
+						i++;
+						offset = 0;
+					}
+				}
+
+				int count = (gathered > 0) ? file.write(buffer, 0, gathered) : -1;
+				if (count == -1)
+					return (transferred > 0) ? transferred : -1;
+
+				transferred += count;
+				if (count < chunk)
+					break;
+			}
+			else {
+				int count = file.read(buffer, 0, chunk);
+				if (count == -1)
+					return (transferred > 0) ? transferred : -1;
+
+				int scattered = 0;
+				while (scattered < count) {
+					int base = Lib.bytesToInt(iovecs, i*iovecSize);
+					int length = Lib.bytesToInt(iovecs, i*iovecSize + 4);
+					int amount = Math.min(length - offset, count - scattered);
+
+					int written = writeVirtualMemory(base + offset, buffer, scattered, amount);
+					scattered += written;
+					offset += written;
+					if (written < amount)
+						return transferred + scattered;
+
+					if (offset == length) {
+						i++;
+						offset = 0;
+					}
+				}
+
+				transferred += count;
+				if (count < chunk)
+					break;
+			}
+		}
+
+		return transferred;
+	}
+
+	/**
+	 * Transfer data between an open file and this process's virtual memory,
+	 * one page at a time, by passing each page's share of the transfer in
+	 * physical memory straight to the file. No intermediate buffer is used.
+	 * Stops early if the file transfers less than a whole page's share, or at
+	 * the first page that cannot be accessed.
+	 *
+	 * @param	file	the file to transfer data with.
+	 * @param	vaddr	the first byte of virtual memory to transfer.
+	 * @param	length	the number of bytes to transfer.
+	 * @param	reading	<tt>true</tt> to read from the file into memory,
+	 *			<tt>false</tt> to write from memory to the file.
+	 * @return	the number of bytes transferred, or -1 if nothing could be
+	 *		transferred because of an error.
+	 */
+	private int transferFile(OpenFile file, int vaddr, int length, boolean reading) {
+		byte[] memory = Machine.processor().getMemory();
+
+		int transferred = 0;
+		while (transferred < length) {
+			int address = vaddr + transferred;
+
+			TranslationEntry entry = translate(Processor.pageFromAddress(address), reading);
+			if (entry == null)
+				return (transferred > 0) ? transferred : -1;
+
+			int pageOffset = Processor.offsetFromAddress(address);
+			int paddr = entry.ppn*pageSize + pageOffset;
+			int amount = Math.min(length - transferred, pageSize - pageOffset);
+
+			// the transfer may block, and the page must stay where it is
+			pinPage(entry);
+			int count = reading ? file.read(memory, paddr, amount)
+					: file.write(memory, paddr, amount);
+			unpinPage(entry);
+			if (count == -1)
+				return (transferred > 0) ? transferred : -1;
+
+			entry.used = true;
+			if (reading && count > 0)
+				entry.dirty = true;
+
+			transferred += count;
+			if (count < amount)
+				break;
+		}
 
-		return bytesWritten;
+		return transferred;
 	}
 
 	/**
@@ -619,6 +912,9 @@ public class UserProcess {
 			return terminate();
 
 		String fileName = readVirtualMemoryString(fileNamePtr, MAXSYSCALLARGLENGTH);
+
+		UserKernel.fileModified(fileName);
+
 		return FileRef.deleteFile(fileName);
 	}
 
@@ -670,6 +966,74 @@ public class UserProcess {
 		return newChild.PID;
 	}
 
+	/**
+	 * Handle creating a copy of this process. The child shares this
+	 * process's pages copy-on-write, gets a duplicate of its file table, and
+	 * returns from the syscall with 0
+	 * @return
+	 * PID of child process
+	 */
+	private int handleFork() {
+		Processor processor = Machine.processor();
+
+		UserProcess newChild = newUserProcess();
+		newChild.parent = this;
+
+		newChild.executableKey = executableKey;
+		newChild.numPages = numPages;
+		newChild.initialPC = initialPC;
+		newChild.initialSP = initialSP;
+		newChild.argc = argc;
+		newChild.argv = argv;
+
+		forkSections(newChild);
+
+		for (int fileDesc = 0; fileDesc < fileTable.length; fileDesc++) {
+			// the child starts with the console open, like every process
+			if (newChild.validFileDescriptor(fileDesc))
+				newChild.handleClose(fileDesc);
+
+			if (validFileDescriptor(fileDesc))
+				newChild.fileTable[fileDesc] = duplicateFile(fileTable[fileDesc]);
+		}
+
+		// the child resumes after the syscall instruction, seeing 0
+		newChild.forkedRegisters = new int[Processor.numUserRegisters];
+		for (int i = 0; i < Processor.numUserRegisters; i++)
+			newChild.forkedRegisters[i] = processor.readRegister(i);
+		newChild.forkedRegisters[Processor.regV0] = 0;
+		newChild.forkedRegisters[Processor.regPC] = processor.readRegister(Processor.regNextPC);
+		newChild.forkedRegisters[Processor.regNextPC] = processor.readRegister(Processor.regNextPC) + 4;
+
+		children.put(newChild.PID, new ChildProcess(newChild));
+
+		new UThread(newChild).setName(KThread.currentThread().getName()).fork();
+
+		return newChild.PID;
+	}
+
+	/**
+	 * Open another file referring to the same file as an open one, at the
+	 * same position, and reference it
+	 * @return
+	 * The new file, or null on failure
+	 */
+	private static OpenFile duplicateFile(OpenFile file) {
+		OpenFile duplicate = UserKernel.console.duplicate(file);
+
+		if (duplicate == null) {
+			duplicate = UserKernel.fileSystem.open(file.getName(), false);
+			if (duplicate == null)
+				return null;
+
+			duplicate.seek(file.tell());
+		}
+
+		FileRef.duplicateReference(file.getName());
+
+		return duplicate;
+	}
+
 	/**
 	 * Handle exiting and cleanup of a process
 	 * @param status
@@ -699,6 +1063,12 @@ public class UserProcess {
 
 		unloadSections();
 
+		if (ThreadedKernel.scheduler instanceof DeadlineScheduler) {
+			boolean intStatus = Machine.interrupt().disable();
+			((DeadlineScheduler) ThreadedKernel.scheduler).clearDeadline(KThread.currentThread());
+			Machine.interrupt().restore(intStatus);
+		}
+
 		exited = true;
 		waitingToJoin.wakeAll();
 		joinLock.release();
@@ -786,9 +1156,58 @@ public class UserProcess {
 		joinLock.release();
 	}
 
+	/**
+	 * Handle the setdeadline() system call. Reserves CPU time for the
+	 * current thread with the deadline scheduler, or removes its reservation
+	 * if <i>period</i> is 0.
+	 */
+	private int handleSetDeadline(int period, int budget, int deadline) {
+		if (!(ThreadedKernel.scheduler instanceof DeadlineScheduler))
+			return -1;
+
+		DeadlineScheduler scheduler = (DeadlineScheduler) ThreadedKernel.scheduler;
+
+		if (period == 0) {
+			boolean intStatus = Machine.interrupt().disable();
+			scheduler.clearDeadline(KThread.currentThread());
+			Machine.interrupt().restore(intStatus);
+			return 0;
+		}
+
+		if (budget <= 0 || budget > deadline || deadline > period)
+			return -1;
+
+		boolean intStatus = Machine.interrupt().disable();
+		boolean admitted = scheduler.setDeadline(KThread.currentThread(), period, budget, deadline);
+		Machine.interrupt().restore(intStatus);
+
+		return admitted ? 0 : -1;
+	}
+
+	/**
+	 * Handle the waitperiod() system call.
+	 */
+	private int handleWaitPeriod() {
+		if (!(ThreadedKernel.scheduler instanceof DeadlineScheduler))
+			return -1;
+
+		DeadlineScheduler scheduler = (DeadlineScheduler) ThreadedKernel.scheduler;
+
+		boolean intStatus = Machine.interrupt().disable();
+		boolean reserved = scheduler.hasDeadline(KThread.currentThread());
+		Machine.interrupt().restore(intStatus);
+
+		if (!reserved)
+			return -1;
+
+		return scheduler.waitForNextPeriod() ? 0 : 1;
+	}
+
 	private static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2,
 			syscallJoin = 3, syscallCreate = 4, syscallOpen = 5, syscallRead = 6,
-			syscallWrite = 7, syscallClose = 8, syscallUnlink = 9;
+			syscallWrite = 7, syscallClose = 8, syscallUnlink = 9,
+			syscallSetDeadline = 13, syscallWaitPeriod = 14,
+			syscallReadv = 15, syscallWritev = 16, syscallFork = 17;
 
 	/**
 	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -809,6 +1228,14 @@ public class UserProcess {
 	 *								</tt></td></tr>
 	 * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
 	 * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+	 * <tr><td>13</td><td><tt>int  setdeadline(int period, int budget,
+	 *						int deadline);</tt></td></tr>
+	 * <tr><td>14</td><td><tt>int  waitperiod();</tt></td></tr>
+	 * <tr><td>15</td><td><tt>int  readv(int fd, struct iovec *iov,
+	 *						int iovcnt);</tt></td></tr>
+	 * <tr><td>16</td><td><tt>int  writev(int fd, struct iovec *iov,
+	 *						int iovcnt);</tt></td></tr>
+	 * <tr><td>17</td><td><tt>int  fork();</tt></td></tr>
 	 * </table>
 	 * 
 	 * @param	syscall	the syscall number.
@@ -828,6 +1255,8 @@ public class UserProcess {
 			return handleExec(a0, a1, a2);
 		case syscallJoin:
 			return handleJoin(a0, a1);
+		case syscallFork:
+			return handleFork();
 
 		case syscallCreate:
 			return handleCreate(a0);
@@ -837,11 +1266,20 @@ public class UserProcess {
 			return handleRead(a0, a1, a2);
 		case syscallWrite:
 			return handleWrite(a0, a1, a2);
+		case syscallReadv:
+			return handleReadv(a0, a1, a2);
+		case syscallWritev:
+			return handleWritev(a0, a1, a2);
 		case syscallClose:
 			return handleClose(a0);
 		case syscallUnlink:
 			return handleUnlink(a0);
 
+		case syscallSetDeadline:
+			return handleSetDeadline(a0, a1, a2);
+		case syscallWaitPeriod:
+			return handleWaitPeriod();
+
 
 
 
@@ -875,14 +1313,29 @@ public class UserProcess {
 			processor.advancePC();
 			break;				       
 
+		case Processor.exceptionReadOnly:
+			int vpn = Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr));
+			if (!copySharedPage(vpn))
+				unexpectedException(cause);
+			break;
+
 		default:
-			Lib.debug(dbgProcess, "Unexpected exception: " +
-					Processor.exceptionNames[cause]);
-			terminate();
-			Lib.assertNotReached("Unexpected exception");
+			unexpectedException(cause);
 		}
 	}
 
+	/**
+	 * Terminate this process after a user exception it cannot recover from.
+	 *
+	 * @param	cause	the user exception that occurred.
+	 */
+	private void unexpectedException(int cause) {
+		Lib.debug(dbgProcess, "Unexpected exception: " +
+				Processor.exceptionNames[cause]);
+		terminate();
+		Lib.assertNotReached("Unexpected exception");
+	}
+
 	private static class ChildProcess {
 		public Integer returnValue;
 		public UserProcess process;
@@ -909,6 +1362,13 @@ public class UserProcess {
 
 
 
+		public static void duplicateReference(String fileName) {
+			FileRef ref = updateFileReference(fileName);
+			Lib.assertTrue(ref.references > 0);
+			ref.references++;
+			finishUpdateFileReference();
+		}
+
 		public static int deleteFile(String fileName) {
 			FileRef ref = updateFileReference(fileName);
 			ref.delete = true;
@@ -963,6 +1423,8 @@ public class UserProcess {
 
 	/** The program being run by this process. */
 	protected Coff coff;
+	/** The key its read-only sections are shared under. */
+	protected String executableKey;
 
 	/** This process's page table. */
 	protected TranslationEntry[] pageTable;
@@ -975,6 +1437,11 @@ public class UserProcess {
 	private int initialPC, initialSP;
 	private int argc, argv;
 
+	/** For each page, whether it is shared copy-on-write, or null if none is. */
+	private boolean[] copyOnWrite;
+	/** The registers a forked process starts with, or null if not forked. */
+	private int[] forkedRegisters;
+
 	private static final int pageSize = Processor.pageSize;
 	private static final char dbgProcess = 'a';
 
@@ -983,6 +1450,11 @@ public class UserProcess {
 	protected OpenFile[] fileTable = new OpenFile[16];
 	private static final int MAXSYSCALLARGLENGTH = 256;
 
+	/** The size of an iovec structure, and the most a readv or writev can take. */
+	private static final int iovecSize = 8, maxIOVecs = 1024;
+	/** The most data readv or writev transfers with one file operation. */
+	private static final int maxStagingSize = 8*pageSize;
+
 	/** Lock to protect static variables */
 	private static Lock sharedStateLock = new Lock();
 
@@ -994,11 +1466,6 @@ public class UserProcess {
 	protected UserProcess parent;
 	private HashMap<Integer, ChildProcess> children = new HashMap<Integer, ChildProcess> ();
 
-	/**
-	 * A lock to protect memory accesses.
-	 */
-	private Lock memoryAccessLock = new Lock();
-
 	/** Join condition */
 	private boolean exited = false;
 	private Lock joinLock = new Lock();
@@ -0,0 +1,187 @@
+package nachos.vm;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * The adaptive replacement cache (ARC) policy.
+ *
+ * <p>
+ * Resident pages are kept in two lists, in order of recency: <i>T1</i> holds
+ * pages referenced once since they were brought in, and <i>T2</i> pages
+ * referenced again since. Two ghost lists, <i>B1</i> and <i>B2</i>, remember
+ * the keys of pages recently evicted from <i>T1</i> and <i>T2</i>. A fault on
+ * a page in <i>B1</i> means <i>T1</i> is too small, and moves the target size
+ * of <i>T1</i> up; a fault on a page in <i>B2</i> moves it down. The victim
+ * is the least recently used page of <i>T1</i> if <i>T1</i> is larger than
+ * its target, and of <i>T2</i> otherwise.
+ *
+ * <p>
+ * The kernel only sees some references, so, as in CAR (clock with adaptive
+ * replacement), a candidate victim whose used bit is set counts as
+ * referenced: it is moved to the front of <i>T2</i> instead of being evicted.
+ */
+public class ARCPolicy implements PageReplacementPolicy {
+    /**
+     * Allocate a new ARC policy.
+     */
+    public ARCPolicy() {
+    }
+
+    public void initialize(Frames frames) {
+	this.frames = frames;
+
+	capacity = frames.getNumFrames();
+	pages = new long[capacity];
+	listOf = new int[capacity];
+	prev = new int[capacity];
+	next = new int[capacity];
+
+	for (int ppn=0; ppn<capacity; ppn++)
+	    listOf[ppn] = none;
+	for (int list=0; list<2; list++)
+	    head[list] = tail[list] = -1;
+    }
+
+    public void pageLoaded(int ppn, long page) {
+	if (!adapted || adaptedFor != page)
+	    adapt(page);
+	adapted = false;
+
+	pages[ppn] = page;
+
+	if (b1.remove(page) || b2.remove(page)) {
+	    insert(ppn, t2);
+	    return;
+	}
+
+	// keep |T1|+|B1| and |T1|+|T2|+|B1|+|B2| within c and 2c
+	if (size[t1] + b1.size() >= capacity && !b1.isEmpty())
+	    removeOldest(b1);
+	else if (size[t1] + size[t2] + b1.size() + b2.size() >= 2*capacity && !b2.isEmpty())
+	    removeOldest(b2);
+
+	insert(ppn, t1);
+    }
+
+    public void pageReferenced(int ppn) {
+	if (listOf[ppn] != none) {
+	    remove(ppn);
+	    insert(ppn, t2);
+	}
+    }
+
+    public void pageFreed(int ppn) {
+	if (listOf[ppn] != none)
+	    remove(ppn);
+    }
+
+    public int chooseVictim(long page) {
+	adapt(page);
+	adapted = true;
+	adaptedFor = page;
+
+	// each page is passed over at most twice: once used, once pinned
+	for (int tries=0; tries<=2*capacity; tries++) {
+	    int list;
+	    if (size[t2] == 0 ||
+		(size[t1] > 0 && (size[t1] > target ||
+				  (size[t1] == target && b2.contains(page)))))
+		list = t1;
+	    else
+		list = t2;
+
+	    int ppn = tail[list];
+	    if (ppn == -1)
+		return -1;
+
+	    remove(ppn);
+
+	    if (!frames.isEvictable(ppn)) {
+		insert(ppn, list);
+		continue;
+	    }
+
+	    if (frames.clearUsed(ppn)) {
+		insert(ppn, t2);
+		continue;
+	    }
+
+	    (list == t1 ? b1 : b2).add(pages[ppn]);
+	    return ppn;
+	}
+
+	return -1;
+    }
+
+    /**
+     * Adapt the target size of <i>T1</i> if the specified page, about to be
+     * brought in, is in a ghost list.
+     */
+    private void adapt(long page) {
+	if (b1.contains(page))
+	    target = Math.min(capacity, target + Math.max(b2.size()/b1.size(), 1));
+	else if (b2.contains(page))
+	    target = Math.max(0, target - Math.max(b1.size()/b2.size(), 1));
+    }
+
+    /**
+     * Add a physical page to the front (most recently used end) of a list.
+     */
+    private void insert(int ppn, int list) {
+	listOf[ppn] = list;
+	prev[ppn] = -1;
+	next[ppn] = head[list];
+	if (head[list] != -1)
+	    prev[head[list]] = ppn;
+	else
+	    tail[list] = ppn;
+	head[list] = ppn;
+	size[list]++;
+    }
+
+    private void remove(int ppn) {
+	int list = listOf[ppn];
+
+	if (prev[ppn] != -1)
+	    next[prev[ppn]] = next[ppn];
+	else
+	    head[list] = next[ppn];
+	if (next[ppn] != -1)
+	    prev[next[ppn]] = prev[ppn];
+	else
+	    tail[list] = prev[ppn];
+
+	listOf[ppn] = none;
+	size[list]--;
+    }
+
+    private static void removeOldest(LinkedHashSet<Long> ghosts) {
+	Iterator<Long> i = ghosts.iterator();
+	i.next();
+	i.remove();
+    }
+
+    private Frames frames;
+    /** <i>c</i>, the number of physical pages. */
+    private int capacity;
+    /** <i>p</i>, the target size of <i>T1</i>. */
+    private int target = 0;
+
+    /** The key of the page each physical page holds. */
+    private long[] pages;
+    /** The list each physical page is in, and its neighbors there. */
+    private int[] listOf, prev, next;
+    /** The first and last physical page, and the size, of each list. */
+    private int[] head = new int[2], tail = new int[2], size = new int[2];
+
+    /** The ghost lists, least recently evicted first. */
+    private LinkedHashSet<Long> b1 = new LinkedHashSet<Long>();
+    private LinkedHashSet<Long> b2 = new LinkedHashSet<Long>();
+
+    /** <tt>true</tt> if the target was already adapted for the page loaded next. */
+    private boolean adapted = false;
+    private long adaptedFor;
+
+    private static final int t1 = 0, t2 = 1, none = -1;
+}
@@ -0,0 +1,67 @@
+package nachos.vm;
+
+/**
+ * The aging replacement policy, an approximation of least recently used.
+ *
+ * <p>
+ * Every resident page has an 8-bit age counter. Each time a victim must be
+ * chosen, every counter is shifted right by one bit and the page's used bit
+ * is moved into its top bit, so the counter records whether the page was
+ * used in each of the last eight intervals between evictions, most recent
+ * first. The evictable page with the smallest counter is evicted; ties are
+ * broken by sweeping from where the last search stopped.
+ */
+public class AgingPolicy implements PageReplacementPolicy {
+    /**
+     * Allocate a new aging policy.
+     */
+    public AgingPolicy() {
+    }
+
+    public void initialize(Frames frames) {
+	this.frames = frames;
+
+	ages = new int[frames.getNumFrames()];
+    }
+
+    public void pageLoaded(int ppn, long page) {
+	ages[ppn] = 0;
+    }
+
+    public void pageReferenced(int ppn) {
+    }
+
+    public void pageFreed(int ppn) {
+    }
+
+    public int chooseVictim(long page) {
+	int numFrames = frames.getNumFrames();
+
+	int victim = -1;
+	for (int i=0; i<numFrames; i++) {
+	    int ppn = (hand+i) % numFrames;
+	    if (!frames.isEvictable(ppn))
+		continue;
+
+	    ages[ppn] >>>= 1;
+	    if (frames.clearUsed(ppn))
+		ages[ppn] |= topBit;
+
+	    if (victim == -1 || ages[ppn] < ages[victim])
+		victim = ppn;
+	}
+
+	if (victim != -1)
+	    hand = (victim+1) % numFrames;
+
+	return victim;
+    }
+
+    private Frames frames;
+    /** The age counter of each physical page. */
+    private int[] ages;
+    /** The physical page the next search starts at. */
+    private int hand = 0;
+
+    private static final int ageBits = 8, topBit = 1 << (ageBits-1);
+}
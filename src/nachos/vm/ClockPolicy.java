@@ -0,0 +1,46 @@
+package nachos.vm;
+
+/**
+ * The clock, or second chance, replacement policy. A hand sweeps the
+ * physical pages in order, clearing the used bit of each page it passes, and
+ * stops at the first evictable page whose used bit was already clear.
+ */
+public class ClockPolicy implements PageReplacementPolicy {
+    /**
+     * Allocate a new clock policy.
+     */
+    public ClockPolicy() {
+    }
+
+    public void initialize(Frames frames) {
+	this.frames = frames;
+    }
+
+    public void pageLoaded(int ppn, long page) {
+    }
+
+    public void pageReferenced(int ppn) {
+    }
+
+    public void pageFreed(int ppn) {
+    }
+
+    public int chooseVictim(long page) {
+	int numFrames = frames.getNumFrames();
+
+	// two sweeps clear every used bit, so every page must be pinned
+	for (int scanned=0; scanned<2*numFrames; scanned++) {
+	    int ppn = hand;
+	    hand = (hand+1) % numFrames;
+
+	    if (frames.isEvictable(ppn) && !frames.clearUsed(ppn))
+		return ppn;
+	}
+
+	return -1;
+    }
+
+    private Frames frames;
+    /** The next physical page the hand will consider. */
+    private int hand = 0;
+}
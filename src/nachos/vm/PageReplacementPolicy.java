@@ -0,0 +1,105 @@
+package nachos.vm;
+
+/**
+ * A policy that decides which physical page to evict when physical memory is
+ * full. <tt>VMKernel</tt> uses the policy named by
+ * <tt>VMKernel.replacementPolicy</tt>, and
+ * <tt>PageReplacementReplay</tt> runs policies offline over recorded traces.
+ *
+ * <p>
+ * A policy identifies physical pages by their ppn, and the pages they hold by
+ * an opaque 64-bit key, so it can remember pages that are no longer
+ * resident. It reads and clears used bits through a <tt>Frames</tt> object.
+ * None of the methods may block; the caller guarantees that no two calls
+ * overlap.
+ */
+public interface PageReplacementPolicy {
+    /**
+     * Prepare to manage the specified physical pages. Called once, before
+     * any other method; all the pages are free.
+     *
+     * @param	frames	the physical pages to manage.
+     */
+    void initialize(Frames frames);
+
+    /**
+     * Called when a page is brought into a physical page that was free or
+     * was just returned by <tt>chooseVictim()</tt>.
+     *
+     * @param	ppn	the physical page.
+     * @param	page	the key of the page it now holds.
+     */
+    void pageLoaded(int ppn, long page);
+
+    /**
+     * Called when the page held by a physical page is referenced, and the
+     * reference is visible to the kernel (for example through a TLB miss).
+     *
+     * @param	ppn	the physical page.
+     */
+    void pageReferenced(int ppn);
+
+    /**
+     * Called when a physical page is freed without being chosen as a victim,
+     * for example because its process exited.
+     *
+     * @param	ppn	the physical page.
+     */
+    void pageFreed(int ppn);
+
+    /**
+     * Choose a resident, evictable page to evict to make room for the
+     * specified page. The caller evicts it and then calls
+     * <tt>pageLoaded()</tt> for the same physical page.
+     *
+     * @param	page	the key of the page that needs a physical page.
+     * @return	the ppn of the victim, or -1 if no page can be evicted.
+     */
+    int chooseVictim(long page);
+
+    /**
+     * The physical pages managed by a policy.
+     */
+    public interface Frames {
+	/**
+	 * Return the number of physical pages.
+	 *
+	 * @return	the number of physical pages.
+	 */
+	int getNumFrames();
+
+	/**
+	 * Test whether a physical page holds a page that may be evicted now,
+	 * that is, one that is resident and not pinned.
+	 *
+	 * @param	ppn	the physical page.
+	 * @return	<tt>true</tt> if the page may be evicted.
+	 */
+	boolean isEvictable(int ppn);
+
+	/**
+	 * Clear the used bit of the page held by a physical page.
+	 *
+	 * @param	ppn	the physical page.
+	 * @return	<tt>true</tt> if the used bit was set.
+	 */
+	boolean clearUsed(int ppn);
+
+	/**
+	 * Test whether the page held by a physical page must be written back
+	 * if it is evicted.
+	 *
+	 * @param	ppn	the physical page.
+	 * @return	<tt>true</tt> if the page is dirty.
+	 */
+	boolean isDirty(int ppn);
+
+	/**
+	 * Return the number of page references seen so far, which serves as
+	 * the clock for policies that measure the age of pages.
+	 *
+	 * @return	the number of references seen.
+	 */
+	long getTime();
+    }
+}
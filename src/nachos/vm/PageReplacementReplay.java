@@ -0,0 +1,206 @@
+package nachos.vm;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Replays a page reference trace, recorded by <tt>VMKernel</tt> with
+ * <tt>VMKernel.traceFile</tt>, through page replacement policies, outside
+ * of Nachos. Run it as
+ *
+ * <p><blockquote><tt>
+ * java nachos.vm.PageReplacementReplay <i>trace</i> <i>numPhysPages</i>
+ * [<i>policy</i> ...]
+ * </tt></blockquote>
+ *
+ * <p>
+ * where each <i>policy</i> is the name of a class that implements
+ * <tt>PageReplacementPolicy</tt>. Without policies, all the built-in ones are
+ * compared. For each policy, prints the number of hits, misses and evictions,
+ * and the miss rate.
+ *
+ * <p>
+ * The replay models memory the way <tt>VMKernel</tt> does: a page's used bit
+ * is set whenever it is referenced, its dirty bit when it is written, and no
+ * page is ever pinned.
+ */
+public class PageReplacementReplay implements PageReplacementPolicy.Frames {
+    /**
+     * Replay a trace through the policies named on the command line.
+     */
+    public static void main(String[] args) throws Exception {
+	if (args.length < 2) {
+	    System.err.println("usage: java nachos.vm.PageReplacementReplay "
+			       + "<trace> <numPhysPages> [<policy> ...]");
+	    System.exit(1);
+	}
+
+	readTrace(args[0]);
+	int numFrames = Integer.parseInt(args[1]);
+
+	String[] policyNames = defaultPolicies;
+	if (args.length > 2) {
+	    policyNames = new String[args.length-2];
+	    System.arraycopy(args, 2, policyNames, 0, policyNames.length);
+	}
+
+	System.out.println(numReferences + " references, " + numFrames
+			   + " physical pages");
+
+	for (String name : policyNames) {
+	    PageReplacementPolicy policy = (PageReplacementPolicy)
+		Class.forName(name).getConstructor().newInstance();
+
+	    PageReplacementReplay replay =
+		new PageReplacementReplay(policy, numFrames);
+	    replay.run();
+
+	    System.out.printf("%-28s hits %8d, misses %8d, evictions %8d, miss rate %6.2f%%%n",
+			      name, replay.hits, replay.misses, replay.evictions,
+			      100.0 * replay.misses / Math.max(numReferences, 1));
+	}
+    }
+
+    /**
+     * Read a trace into <tt>pages</tt> and <tt>writes</tt>.
+     */
+    private static void readTrace(String fileName) throws IOException {
+	ArrayList<Long> pageList = new ArrayList<Long>();
+	ArrayList<Boolean> writeList = new ArrayList<Boolean>();
+
+	BufferedReader reader = new BufferedReader(new FileReader(fileName));
+	try {
+	    String line;
+	    while ((line = reader.readLine()) != null) {
+		String[] fields = line.trim().split("\\s+");
+		if (fields.length < 2)
+		    continue;
+
+		long pid = Long.parseLong(fields[0]);
+		long vpn = Long.parseLong(fields[1]);
+
+		pageList.add((pid << 32) | vpn);
+		writeList.add(fields.length > 2 && fields[2].equals("w"));
+	    }
+	}
+	finally {
+	    reader.close();
+	}
+
+	numReferences = pageList.size();
+	pages = new long[numReferences];
+	writes = new boolean[numReferences];
+	for (int i=0; i<numReferences; i++) {
+	    pages[i] = pageList.get(i);
+	    writes[i] = writeList.get(i);
+	}
+    }
+
+    private PageReplacementReplay(PageReplacementPolicy policy, int numFrames) {
+	this.policy = policy;
+
+	framePages = new long[numFrames];
+	resident = new boolean[numFrames];
+	used = new boolean[numFrames];
+	dirty = new boolean[numFrames];
+    }
+
+    /**
+     * Feed every reference of the trace to the policy.
+     */
+    private void run() {
+	policy.initialize(this);
+
+	int numFree = framePages.length;
+
+	for (time=0; time<numReferences; ) {
+	    long page = pages[(int) time];
+	    boolean writing = writes[(int) time];
+
+	    Integer frame = pageFrames.get(page);
+	    int ppn;
+
+	    time++;
+
+	    if (frame != null) {
+		hits++;
+		ppn = frame;
+		policy.pageReferenced(ppn);
+	    }
+	    else {
+		misses++;
+
+		if (numFree > 0) {
+		    ppn = framePages.length - numFree;
+		    numFree--;
+		}
+		else {
+		    ppn = policy.chooseVictim(page);
+		    if (ppn < 0 || !resident[ppn])
+			throw new IllegalStateException("invalid victim " + ppn);
+
+		    evictions++;
+		    pageFrames.remove(framePages[ppn]);
+		}
+
+		framePages[ppn] = page;
+		resident[ppn] = true;
+		dirty[ppn] = false;
+		pageFrames.put(page, ppn);
+
+		policy.pageLoaded(ppn, page);
+	    }
+
+	    used[ppn] = true;
+	    if (writing)
+		dirty[ppn] = true;
+	}
+    }
+
+    public int getNumFrames() {
+	return framePages.length;
+    }
+
+    public boolean isEvictable(int ppn) {
+	return resident[ppn];
+    }
+
+    public boolean clearUsed(int ppn) {
+	boolean wasUsed = used[ppn];
+	used[ppn] = false;
+	return wasUsed;
+    }
+
+    public boolean isDirty(int ppn) {
+	return dirty[ppn];
+    }
+
+    public long getTime() {
+	return time;
+    }
+
+    private PageReplacementPolicy policy;
+
+    /** The page each physical page holds, and the physical page of each page. */
+    private long[] framePages;
+    private HashMap<Long, Integer> pageFrames = new HashMap<Long, Integer>();
+    private boolean[] resident, used, dirty;
+
+    private long time;
+    private long hits = 0, misses = 0, evictions = 0;
+
+    /** The trace: the page and whether it was written, for each reference. */
+    private static long[] pages;
+    private static boolean[] writes;
+    private static int numReferences;
+
+    private static final String[] defaultPolicies = {
+	"nachos.vm.ClockPolicy",
+	"nachos.vm.AgingPolicy",
+	"nachos.vm.WSClockPolicy",
+	"nachos.vm.ARCPolicy",
+    };
+}
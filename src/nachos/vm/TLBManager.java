@@ -0,0 +1,238 @@
+package nachos.vm;
+
+import java.util.Arrays;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * Manages the processor's software-managed TLB for demand-paged processes.
+ *
+ * <p>
+ * The TLB only ever holds translations of one process, its <i>owner</i>. A
+ * miss on a resident page is refilled straight from the owner's page table by
+ * the processor's TLB refill handler, without raising an exception; only a
+ * miss on a page that must be brought in reaches
+ * <tt>VMProcess.handleException()</tt>.
+ *
+ * <p>
+ * When its owner is switched out, the TLB's used and dirty bits are copied
+ * back to the owner's page table, and the pages it mapped are remembered.
+ * When the process runs again, the pages that are still resident are loaded
+ * back, so it does not miss on all of them again after every switch.
+ */
+public class TLBManager {
+    /**
+     * Allocate a new TLB manager, and install its refill handler.
+     */
+    TLBManager() {
+	processor = Machine.processor();
+
+	vpns = new int[processor.getTLBSize()];
+	Arrays.fill(vpns, -1);
+
+	processor.setTLBRefillHandler(new Runnable() {
+		public void run() { refill(); }
+	    });
+    }
+
+    /**
+     * Load the translation for a resident page of the current process,
+     * replacing the entries in turn once the TLB is full.
+     *
+     * @param	process	the current process.
+     * @param	entry	the page table entry to load.
+     */
+    void load(VMProcess process, TranslationEntry entry) {
+	Lib.assertTrue(entry.valid);
+	setOwner(process);
+
+	int slot = -1;
+	for (int i=0; i<vpns.length; i++) {
+	    if (vpns[i] == -1 || vpns[i] == entry.vpn) {
+		slot = i;
+		break;
+	    }
+	}
+
+	if (slot == -1) {
+	    slot = nextVictim;
+	    nextVictim = (nextVictim+1) % vpns.length;
+	    sync(slot, false);
+	}
+
+	processor.writeTLBEntry(slot, entry);
+	vpns[slot] = entry.vpn;
+    }
+
+    /**
+     * Called when a process is switched out. Copies the TLB's used and dirty
+     * bits back to its page table, remembers which pages were mapped, and
+     * invalidates the TLB.
+     *
+     * @param	process	the process being switched out.
+     */
+    void save(VMProcess process) {
+	if (owner != process)
+	    return;
+
+	int[] saved = process.savedTLB;
+	for (int i=0; i<vpns.length; i++) {
+	    saved[i] = vpns[i];
+	    invalidate(i);
+	}
+
+	owner = null;
+    }
+
+    /**
+     * Called when a process is switched in. Loads the pages it had in the TLB
+     * when it was switched out, if they are still resident.
+     *
+     * @param	process	the process being switched in.
+     */
+    void restore(VMProcess process) {
+	setOwner(process);
+
+	int[] saved = process.savedTLB;
+	for (int i=0; i<vpns.length; i++) {
+	    if (saved[i] == -1)
+		continue;
+
+	    TranslationEntry entry = process.getEntry(saved[i]);
+	    if (entry.valid) {
+		processor.writeTLBEntry(i, entry);
+		vpns[i] = saved[i];
+	    }
+	    saved[i] = -1;
+	}
+    }
+
+    /**
+     * Copy the TLB's used and dirty bits back to the page table of a process,
+     * if it owns the TLB, and clear the used bits in the TLB, so that the
+     * page table shows every use from now on.
+     *
+     * @param	process	the process.
+     */
+    void sync(VMProcess process) {
+	if (owner != process)
+	    return;
+
+	for (int i=0; i<vpns.length; i++)
+	    sync(i, true);
+    }
+
+    /**
+     * Remove the translation of the specified page of a process from the
+     * TLB, without copying its bits back.
+     *
+     * @param	process	the process the page belongs to.
+     * @param	vpn	the page.
+     */
+    void invalidate(VMProcess process, int vpn) {
+	if (owner != process)
+	    return;
+
+	for (int i=0; i<vpns.length; i++) {
+	    if (vpns[i] == vpn) {
+		processor.writeTLBEntry(i, invalidEntry);
+		vpns[i] = -1;
+	    }
+	}
+    }
+
+    /**
+     * Copy the TLB's bits back to the page table of a process, if it owns
+     * the TLB, and invalidate the TLB, forgetting it ever owned it.
+     *
+     * @param	process	the process.
+     */
+    void flush(VMProcess process) {
+	if (owner != process)
+	    return;
+
+	for (int i=0; i<vpns.length; i++)
+	    invalidate(i);
+
+	owner = null;
+    }
+
+    /**
+     * The TLB refill handler. Loads the translation of the missing page if it
+     * is resident; otherwise leaves the miss to be raised as an exception.
+     */
+    private void refill() {
+	VMProcess process = (VMProcess) UserKernel.currentProcess();
+	if (process == null)
+	    return;
+
+	int vpn = Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr));
+	process.numTLBMisses++;
+
+	VMKernel kernel = (VMKernel) Kernel.kernel;
+
+	// traced references go through the exception, which can block
+	TranslationEntry entry = process.getEntry(vpn);
+	if (entry == null || !entry.valid || kernel.isTracing())
+	    return;
+
+	kernel.pageHit(entry.ppn);
+	load(process, entry);
+    }
+
+    /**
+     * Make the specified process the owner of the TLB, invalidating it if
+     * another process owned it.
+     */
+    private void setOwner(VMProcess process) {
+	if (owner != process && owner != null)
+	    flush(owner);
+
+	owner = process;
+    }
+
+    /**
+     * Copy the used and dirty bits of a TLB entry back to the owner's page
+     * table, and invalidate the entry.
+     */
+    private void invalidate(int slot) {
+	sync(slot, false);
+
+	processor.writeTLBEntry(slot, invalidEntry);
+	vpns[slot] = -1;
+    }
+
+    /**
+     * Copy the used and dirty bits of a TLB entry, if it is valid, back to
+     * the owner's page table, and, if <i>clearUsed</i> is <tt>true</tt>,
+     * clear its used bit.
+     */
+    private void sync(int slot, boolean clearUsed) {
+	if (vpns[slot] == -1)
+	    return;
+
+	TranslationEntry tlbEntry = processor.readTLBEntry(slot);
+	TranslationEntry entry = owner.getEntry(vpns[slot]);
+
+	entry.used |= tlbEntry.used;
+	entry.dirty |= tlbEntry.dirty;
+
+	if (clearUsed && tlbEntry.used) {
+	    tlbEntry.used = false;
+	    processor.writeTLBEntry(slot, tlbEntry);
+	}
+    }
+
+    private Processor processor;
+
+    /** The process whose translations the TLB holds, or <tt>null</tt>. */
+    private VMProcess owner = null;
+    /** The page each TLB entry maps, or -1 if the entry is invalid. */
+    private int[] vpns;
+    /** The TLB entry to replace next when the TLB is full. */
+    private int nextVictim = 0;
+
+    private static final TranslationEntry invalidEntry = new TranslationEntry();
+}
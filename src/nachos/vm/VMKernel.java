@@ -1,5 +1,9 @@
 package nachos.vm;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
@@ -7,6 +11,35 @@ import nachos.vm.*;
 
 /**
  * A kernel that can support multiple demand-paging user processes.
+ *
+ * <p>
+ * Physical memory is shared by all processes. A global inverted page table
+ * records which page of which process each physical page holds. When no
+ * physical page is free, a victim is chosen by the
+ * <tt>PageReplacementPolicy</tt> named by <tt>VMKernel.replacementPolicy</tt>
+ * (by default, <tt>ClockPolicy</tt>). A dirty victim is written to a swap
+ * file; a clean one is simply dropped, since it can be read back from the
+ * executable or from its earlier copy in the swap file, or zero-filled
+ * again.
+ *
+ * <p>
+ * The read-only pages of an executable belong to a <tt>SharedText</tt>
+ * instead of a process, and are shared by every process running the
+ * executable: a process that faults on one that is resident just maps it.
+ * Evicting such a page unmaps it from all of them.
+ *
+ * <p>
+ * Likewise, a resident page of a process that forks belongs to a
+ * <tt>SharedPage</tt>, and is mapped read-only by the process and its child
+ * until one of them writes it and gets its own copy. Evicting such a page
+ * writes it to a single swap page shared by all of them, if it had changed
+ * before it was shared.
+ *
+ * <p>
+ * If <tt>VMKernel.traceFile</tt> is set, every page reference the kernel
+ * sees is also appended to that file, as a line holding the process ID, the
+ * virtual page number and, for a known write, <tt>w</tt>.
+ * <tt>PageReplacementReplay</tt> replays such traces through each policy.
  */
 public class VMKernel extends UserKernel {
     /**
@@ -17,15 +50,48 @@ public class VMKernel extends UserKernel {
     }
 
     /**
-     * Initialize this kernel.
+     * Initialize this kernel. Takes every physical page from the
+     * <tt>UserKernel</tt> free set; from then on, pages are handed out one at
+     * a time, as processes fault them in. Also creates the swap file.
      */
     public void initialize(String[] args) {
 	super.initialize(args);
+
+	frames = new Frame[Machine.processor().getNumPhysPages()];
+
+	try {
+	    TranslationEntry[] pages = acquirePages(frames.length);
+	    for (int i=0; i<pages.length; i++) {
+		frames[pages[i].ppn] = new Frame();
+		freePages.add(pages[i].ppn);
+	    }
+	}
+	catch (InadequatePagesException e) {
+	    Lib.assertNotReached("physical memory already in use");
+	}
+
+	if (Machine.processor().hasTLB())
+	    tlb = new TLBManager();
+
+	policy = (PageReplacementPolicy) Lib.constructObject(
+	    Config.getString("VMKernel.replacementPolicy", "nachos.vm.ClockPolicy"));
+	policy.initialize(new PolicyFrames());
+
+	swapFile = fileSystem.open(swapFileName, true);
+	Lib.assertTrue(swapFile != null, "unable to create swap file");
+
+	String traceFileName = Config.getString("VMKernel.traceFile", null);
+	if (traceFileName != null) {
+	    traceFile = fileSystem.open(traceFileName, true);
+	    Lib.assertTrue(traceFile != null, "unable to create trace file");
+	}
+
+	memoryLock = new Lock();
     }
 
     /**
      * Test this kernel.
-     */	
+     */
     public void selfTest() {
 	super.selfTest();
     }
@@ -36,16 +102,697 @@ public class VMKernel extends UserKernel {
     public void run() {
 	super.run();
     }
-    
+
     /**
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	closeFiles();
+
 	super.terminate();
     }
 
+    /**
+     * Write out the page reference trace, and close and remove the swap
+     * file. Called when Nachos stops, either by <tt>terminate()</tt> or by
+     * the halt syscall, which halts the machine without terminating the
+     * kernel.
+     */
+    void closeFiles() {
+	flushTrace();
+
+	if (swapFile != null) {
+	    swapFile.close();
+	    swapFile = null;
+	    fileSystem.remove(swapFileName);
+	}
+    }
+
+    /**
+     * Acquire the lock that protects physical memory and the swap file. A
+     * process must hold it while it brings a page in or releases its pages.
+     */
+    void lockMemory() {
+	memoryLock.acquire();
+    }
+
+    /**
+     * Release the lock acquired by <tt>lockMemory()</tt>.
+     */
+    void unlockMemory() {
+	memoryLock.release();
+    }
+
+    /**
+     * Allocate a physical page to hold the specified page of a process,
+     * evicting another page if none is free. The memory lock must be held.
+     *
+     * @param	process	the process the page will belong to.
+     * @param	vpn	the virtual page it will hold.
+     * @return	the page's ppn.
+     */
+    int allocatePage(VMProcess process, int vpn) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	int ppn = takePage(pageKey(process, vpn));
+
+	frames[ppn].process = process;
+	frames[ppn].vpn = vpn;
+
+	Lib.debug(dbgVM, "allocatePage: " + ppn + " for vpn " + vpn);
+	return ppn;
+    }
+
+    /**
+     * Allocate a physical page to hold the specified read-only page of an
+     * executable, evicting another page if none is free. The memory lock must
+     * be held. Evicting may block, and if another process brings the page in
+     * meanwhile, the physical page is freed again.
+     *
+     * @param	text	the read-only pages of the executable.
+     * @param	vpn	the virtual page it will hold.
+     * @return	the page's ppn, or -1 if the page is now resident, and
+     *		<tt>getTextPage()</tt> returns it.
+     */
+    int allocateTextPage(SharedText text, int vpn) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	int ppn = takePage(textKey(text, vpn));
+
+	if (text.ppns[vpn] != -1) {
+	    freePage(ppn);
+	    return -1;
+	}
+
+	frames[ppn].text = text;
+	frames[ppn].vpn = vpn;
+	text.ppns[vpn] = ppn;
+
+	Lib.debug(dbgVM, "allocateTextPage: " + ppn + " for vpn " + vpn);
+	return ppn;
+    }
+
+    /**
+     * Return the physical page holding the specified read-only page of an
+     * executable. The memory lock must be held.
+     *
+     * @param	text	the read-only pages of the executable.
+     * @param	vpn	the virtual page.
+     * @return	the page's ppn, or -1 if it is not resident.
+     */
+    int getTextPage(SharedText text, int vpn) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	return text.ppns[vpn];
+    }
+
+    /**
+     * Start sharing a resident page of a process, which must not already be
+     * shared, with the processes forked from it. Every user must map it
+     * read-only. The memory lock must be held.
+     *
+     * @param	process	the process whose page it is.
+     * @param	vpn	the virtual page.
+     * @param	ppn	the physical page holding it.
+     * @param	dirty	<tt>true</tt> if the page has changed since it was
+     *			brought in.
+     * @return	the shared page, used only by <i>process</i> so far.
+     */
+    SharedPage sharePage(VMProcess process, int vpn, int ppn, boolean dirty) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+	Lib.assertTrue(frames[ppn].process == process && frames[ppn].vpn == vpn);
+
+	SharedPage page = new SharedPage(ppn, dirty);
+	page.users.add(process);
+
+	frames[ppn].process = null;
+	frames[ppn].shared = page;
+
+	return page;
+    }
+
+    /**
+     * Add a process, forked from a user of a shared page, to its users. The
+     * memory lock must be held.
+     *
+     * @param	process	the new process.
+     * @param	page	the shared page.
+     */
+    void attachSharedPage(VMProcess process, SharedPage page) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	page.users.add(process);
+    }
+
+    /**
+     * Remove a process that no longer maps a shared page from its users. Once
+     * it has no users, the physical page is freed. The memory lock must be
+     * held.
+     *
+     * @param	process	the process.
+     * @param	page	the shared page.
+     */
+    void detachSharedPage(VMProcess process, SharedPage page) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	page.users.remove(process);
+	if (page.users.isEmpty())
+	    freePage(page.ppn);
+    }
+
+    /**
+     * Give a process its own copy of a shared page, and remove it from the
+     * page's users. The last user takes the physical page itself; any other
+     * user gets a new one, evicting another page if none is free. The memory
+     * lock must be held, and the process must map the page.
+     *
+     * @param	process	the process that will write the page.
+     * @param	page	the shared page.
+     * @return	the ppn of the process's own copy.
+     */
+    int copySharedPage(VMProcess process, SharedPage page) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+	Lib.assertTrue(page.users.contains(process));
+
+	Frame frame = frames[page.ppn];
+	int vpn = frame.vpn;
+
+	if (page.users.size() == 1) {
+	    page.users.clear();
+	    frame.shared = null;
+	    frame.process = process;
+	    return page.ppn;
+	}
+
+	// allocating may block, but must not evict the page being copied
+	pinPage(page.ppn);
+	int ppn = allocatePage(process, vpn);
+	unpinPage(page.ppn);
+
+	byte[] memory = Machine.processor().getMemory();
+	System.arraycopy(memory, page.ppn*pageSize, memory, ppn*pageSize, pageSize);
+
+	// the other users may have copied or dropped it meanwhile
+	detachSharedPage(process, page);
+
+	return ppn;
+    }
+
+    /**
+     * Start sharing the read-only pages of an executable. The memory lock
+     * must be held.
+     *
+     * @param	process	the process that runs the executable.
+     * @param	key	the executable's key, from
+     *			<tt>UserKernel.executableKey()</tt>.
+     * @param	numPages	the number of pages in the process.
+     * @return	the read-only pages of the executable.
+     */
+    SharedText attachText(VMProcess process, String key, int numPages) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	SharedText text = sharedText.get(key);
+	if (text == null) {
+	    text = new SharedText(key, nextTextID++, numPages);
+	    sharedText.put(key, text);
+	}
+
+	text.users.add(process);
+	return text;
+    }
+
+    /**
+     * Stop sharing the read-only pages of an executable. The process must no
+     * longer map any of them. Once no process shares them, they are freed.
+     * The memory lock must be held.
+     *
+     * @param	process	the process that ran the executable.
+     * @param	text	the read-only pages of the executable.
+     */
+    void detachText(VMProcess process, SharedText text) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	text.users.remove(process);
+	if (!text.users.isEmpty())
+	    return;
+
+	for (int vpn=0; vpn<text.ppns.length; vpn++) {
+	    if (text.ppns[vpn] != -1) {
+		freePage(text.ppns[vpn]);
+		text.ppns[vpn] = -1;
+	    }
+	}
+
+	sharedText.remove(text.key);
+    }
+
+    /**
+     * Take a free physical page, or evict a page if none is free, and tell
+     * the replacement policy that it now holds the specified page.
+     */
+    private int takePage(long page) {
+	int ppn = freePages.isEmpty() ? evictPage(page) : freePages.removeFirst();
+
+	referenceTime++;
+	Machine.pageReferenced(false);
+	policy.pageLoaded(ppn, page);
+
+	return ppn;
+    }
+
+    /**
+     * Return a page allocated by <tt>allocatePage()</tt> to the free set. The
+     * memory lock must be held.
+     *
+     * @param	ppn	the page to free.
+     */
+    void freePage(int ppn) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+	Lib.assertTrue(frames[ppn].pinCount == 0);
+
+	frames[ppn].process = null;
+	frames[ppn].text = null;
+	frames[ppn].shared = null;
+	freePages.add(ppn);
+
+	policy.pageFreed(ppn);
+    }
+
+    /**
+     * Record that a resident page was referenced. Does not block.
+     *
+     * @param	ppn	the physical page holding the page.
+     */
+    void pageHit(int ppn) {
+	referenceTime++;
+	Machine.pageReferenced(true);
+	policy.pageReferenced(ppn);
+    }
+
+    /**
+     * Test whether page references are being traced.
+     *
+     * @return	<tt>true</tt> if there is a trace file.
+     */
+    boolean isTracing() {
+	return traceFile != null;
+    }
+
+    /**
+     * Append a page reference to the trace file, if there is one. May block.
+     *
+     * @param	process	the process that referenced the page.
+     * @param	vpn	the page referenced.
+     * @param	writing	<tt>true</tt> if the reference is known to be a write.
+     */
+    void traceReference(VMProcess process, int vpn, boolean writing) {
+	if (traceFile == null)
+	    return;
+
+	trace.append(process.getPID()).append(' ').append(vpn);
+	if (writing)
+	    trace.append(" w");
+	trace.append('\n');
+
+	if (trace.length() >= traceBufferSize)
+	    flushTrace();
+    }
+
+    /**
+     * Write out the references buffered by <tt>traceReference()</tt>.
+     */
+    void flushTrace() {
+	if (traceFile == null || trace.length() == 0)
+	    return;
+
+	byte[] bytes = trace.toString().getBytes();
+	trace.setLength(0);
+
+	// claim the space first, since the write may block
+	int position = traceLength;
+	traceLength += bytes.length;
+
+	traceFile.write(position, bytes, 0, bytes.length);
+    }
+
+    /**
+     * Keep the specified physical page from being evicted until
+     * <tt>unpinPage()</tt> is called. Does not block, so a page the caller
+     * has just found to be resident is still resident when this returns.
+     *
+     * @param	ppn	the page to pin.
+     */
+    void pinPage(int ppn) {
+	frames[ppn].pinCount++;
+    }
+
+    /**
+     * Undo one call to <tt>pinPage()</tt>.
+     *
+     * @param	ppn	the page to unpin.
+     */
+    void unpinPage(int ppn) {
+	Lib.assertTrue(frames[ppn].pinCount > 0);
+
+	frames[ppn].pinCount--;
+    }
+
+    /**
+     * Allocate a page of the swap file. The memory lock must be held.
+     *
+     * @return	the number of the allocated swap page.
+     */
+    int allocateSwapPage() {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	int spn;
+	if (!freeSwapPages.isEmpty())
+	    spn = freeSwapPages.removeFirst();
+	else
+	    spn = numSwapPages++;
+
+	if (spn >= swapReferences.length)
+	    swapReferences = Arrays.copyOf(swapReferences, 2*swapReferences.length);
+	swapReferences[spn] = 1;
+
+	return spn;
+    }
+
+    /**
+     * Share a swap page with another process, which must free it with
+     * <tt>freeSwapPage()</tt> too. The memory lock must be held.
+     *
+     * @param	spn	the swap page to share.
+     */
+    void shareSwapPage(int spn) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	swapReferences[spn]++;
+    }
+
+    /**
+     * Test whether more than one process shares a swap page. A shared swap
+     * page must not be written. The memory lock must be held.
+     *
+     * @param	spn	the swap page.
+     * @return	<tt>true</tt> if the page is shared.
+     */
+    boolean isSwapPageShared(int spn) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	return swapReferences[spn] > 1;
+    }
+
+    /**
+     * Release a page allocated by <tt>allocateSwapPage()</tt>. It returns to
+     * the free set once every process that shared it has released it. The
+     * memory lock must be held.
+     *
+     * @param	spn	the swap page to free.
+     */
+    void freeSwapPage(int spn) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+	Lib.assertTrue(swapReferences[spn] > 0);
+
+	if (--swapReferences[spn] == 0)
+	    freeSwapPages.add(spn);
+    }
+
+    /**
+     * Copy a physical page to a page of the swap file. The memory lock must
+     * be held.
+     *
+     * @param	spn	the swap page to write.
+     * @param	ppn	the physical page to copy.
+     */
+    void writeSwapPage(int spn, int ppn) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	Lib.debug(dbgVM, "\twriting ppn " + ppn + " to swap page " + spn);
+
+	int count = swapFile.write(spn*pageSize, Machine.processor().getMemory(),
+				   ppn*pageSize, pageSize);
+	Lib.assertTrue(count == pageSize, "swap file write failed");
+    }
+
+    /**
+     * Copy a page of the swap file to a physical page. The memory lock must
+     * be held.
+     *
+     * @param	spn	the swap page to read.
+     * @param	ppn	the physical page to fill.
+     */
+    void readSwapPage(int spn, int ppn) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	Lib.debug(dbgVM, "\treading swap page " + spn + " into ppn " + ppn);
+
+	int count = swapFile.read(spn*pageSize, Machine.processor().getMemory(),
+				  ppn*pageSize, pageSize);
+	Lib.assertTrue(count == pageSize, "swap file read failed");
+    }
+
+    /**
+     * Choose a victim with the replacement policy, and take it from the
+     * process that owns it. If every page is pinned, waits for one to be
+     * unpinned.
+     *
+     * @param	page	the key of the page that needs a physical page.
+     * @return	the ppn of the evicted page.
+     */
+    private int evictPage(long page) {
+	// the used and dirty bits in the TLB must be in the page tables
+	VMProcess current = (VMProcess) currentProcess();
+	if (current != null && tlb != null)
+	    tlb.sync(current);
+
+	int ppn;
+	while ((ppn = policy.chooseVictim(page)) == -1) {
+	    memoryLock.release();
+	    KThread.yield();
+	    memoryLock.acquire();
+
+	    if (!freePages.isEmpty())
+		return freePages.removeFirst();
+	}
+
+	Frame frame = frames[ppn];
+	Lib.assertTrue(frame.isInUse() && frame.pinCount == 0);
+
+	Lib.debug(dbgVM, "\tevicting ppn " + ppn);
+	Machine.pageEvicted();
+
+	if (frame.text != null) {
+	    // read-only, so never dirty
+	    SharedText text = frame.text;
+	    frame.text = null;
+	    text.ppns[frame.vpn] = -1;
+
+	    for (VMProcess user : text.users) {
+		if (tlb != null)
+		    tlb.invalidate(user, frame.vpn);
+		user.unmapPage(frame.vpn, ppn);
+	    }
+
+	    return ppn;
+	}
+
+	if (frame.shared != null) {
+	    // read-only, but it may have changed before it was shared
+	    SharedPage shared = frame.shared;
+	    frame.shared = null;
+
+	    int spn = shared.dirty ? allocateSwapPage() : -1;
+
+	    // unmap it first, so no user reads the swap page before it is written
+	    for (VMProcess user : shared.users) {
+		if (tlb != null)
+		    tlb.invalidate(user, frame.vpn);
+		user.unmapSharedPage(frame.vpn, spn);
+	    }
+
+	    if (spn != -1) {
+		writeSwapPage(spn, ppn);
+		freeSwapPage(spn);
+	    }
+
+	    return ppn;
+	}
+
+	VMProcess owner = frame.process;
+	frame.process = null;
+	if (tlb != null)
+	    tlb.invalidate(owner, frame.vpn);
+	owner.pageOut(frame.vpn);
+
+	return ppn;
+    }
+
+    /**
+     * Return the key by which the replacement policy knows a page.
+     */
+    private static long pageKey(VMProcess process, int vpn) {
+	return ((long) process.getPID() << 32) | vpn;
+    }
+
+    /**
+     * Return the key by which the replacement policy knows a read-only page
+     * of an executable. It is negative, so it is never the key of a page of
+     * a process.
+     */
+    private static long textKey(SharedText text, int vpn) {
+	return ((long) (-1 - text.id) << 32) | vpn;
+    }
+
+    /**
+     * The physical pages, as seen by the replacement policy.
+     */
+    private class PolicyFrames implements PageReplacementPolicy.Frames {
+	public int getNumFrames() {
+	    return frames.length;
+	}
+
+	public boolean isEvictable(int ppn) {
+	    return frames[ppn].isInUse() && frames[ppn].pinCount == 0;
+	}
+
+	public boolean clearUsed(int ppn) {
+	    Frame frame = frames[ppn];
+	    if (frame.process != null)
+		return frame.process.clearUsed(frame.vpn);
+
+	    LinkedList<VMProcess> users =
+		(frame.text != null) ? frame.text.users : frame.shared.users;
+
+	    boolean used = false;
+	    for (VMProcess user : users)
+		used |= user.clearUsed(frame.vpn, ppn);
+	    return used;
+	}
+
+	public boolean isDirty(int ppn) {
+	    Frame frame = frames[ppn];
+	    if (frame.process != null)
+		return frame.process.isDirty(frame.vpn);
+	    if (frame.shared != null)
+		return frame.shared.dirty;
+
+	    return false;
+	}
+
+	public long getTime() {
+	    return referenceTime;
+	}
+    }
+
+    /**
+     * An entry in the inverted page table.
+     */
+    private static class Frame {
+	/** Test whether this page holds a page of a process or executable. */
+	boolean isInUse() {
+	    return process != null || text != null || shared != null;
+	}
+
+	/** The process whose page this is, or <tt>null</tt>. */
+	VMProcess process = null;
+	/** The executable whose read-only page this is, or <tt>null</tt>. */
+	SharedText text = null;
+	/** The forked processes whose shared page this is, or <tt>null</tt>. */
+	SharedPage shared = null;
+	/** The virtual page this page holds. */
+	int vpn;
+	/** The number of unmatched calls to <tt>pinPage()</tt>. */
+	int pinCount = 0;
+    }
+
+    /**
+     * The read-only pages of an executable, shared by the processes running
+     * it.
+     */
+    static class SharedText {
+	private SharedText(String key, int id, int numPages) {
+	    this.key = key;
+	    this.id = id;
+
+	    ppns = new int[numPages];
+	    Arrays.fill(ppns, -1);
+	}
+
+	/** The executable's key, and a number that identifies it. */
+	private String key;
+	private int id;
+	/** The physical page holding each page, or -1 if it is not resident. */
+	private int[] ppns;
+	/** The processes running the executable. */
+	private LinkedList<VMProcess> users = new LinkedList<VMProcess>();
+    }
+
+    /**
+     * A resident page shared by a process and the processes forked from it,
+     * at the same virtual page, until each writes it. All of them share the
+     * same swap page for it, if any.
+     */
+    static class SharedPage {
+	private SharedPage(int ppn, boolean dirty) {
+	    this.ppn = ppn;
+	    this.dirty = dirty;
+	}
+
+	/**
+	 * Test whether the page changed before it was shared, so that it
+	 * differs from its swap page or from the page it was loaded from.
+	 */
+	boolean isDirty() {
+	    return dirty;
+	}
+
+	/** The physical page holding the page. */
+	private int ppn;
+	/** Whether the page had changed since it was brought in. */
+	private boolean dirty;
+	/** The processes mapping the page. */
+	private LinkedList<VMProcess> users = new LinkedList<VMProcess>();
+    }
+
+    /** The inverted page table, indexed by ppn. */
+    private Frame[] frames;
+    /** The physical pages not used by any process. */
+    private LinkedList<Integer> freePages = new LinkedList<Integer>();
+    /** Manages the TLB, or <tt>null</tt> if the processor has none. */
+    static TLBManager tlb = null;
+
+    /** The read-only pages of the executables being run, by key. */
+    private HashMap<String, SharedText> sharedText = new HashMap<String, SharedText>();
+    private int nextTextID = 0;
+
+    /** Chooses the pages to evict. */
+    private PageReplacementPolicy policy;
+    /** The number of page references seen, the replacement policy's clock. */
+    private long referenceTime = 0;
+
+    /** The file evicted pages are written to. */
+    private OpenFile swapFile;
+    /** The swap pages written and then freed, and the number ever used. */
+    private LinkedList<Integer> freeSwapPages = new LinkedList<Integer>();
+    private int numSwapPages = 0;
+    /** The number of processes that use each swap page. */
+    private int[] swapReferences = new int[64];
+
+    /** Protects physical memory, the inverted page table, and the swap file. */
+    private Lock memoryLock;
+
+    /** The trace file, the references not yet written, and its length. */
+    private OpenFile traceFile = null;
+    private StringBuilder trace = new StringBuilder();
+    private int traceLength = 0;
+
+    private static final String swapFileName = "swap";
+    private static final int traceBufferSize = 4096;
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
+    private static final int pageSize = Processor.pageSize;
     private static final char dbgVM = 'v';
 }
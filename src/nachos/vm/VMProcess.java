@@ -1,5 +1,7 @@
 package nachos.vm;
 
+import java.util.Arrays;
+
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
@@ -7,6 +9,24 @@ import nachos.vm.*;
 
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
+ *
+ * <p>
+ * Every page starts out invalid, and no physical memory is allocated when the
+ * process is loaded. A page is brought in the first time it is touched,
+ * either by the program (a page fault, or a TLB miss when the processor has
+ * a TLB) or by the kernel copying to or from it: a page of a COFF section is
+ * read from the executable, and a stack or argument page is zero-filled. A
+ * page that <tt>VMKernel</tt> has evicted is brought back from the swap file
+ * if it was written there, and otherwise in the same way as the first time.
+ *
+ * <p>
+ * The pages of read-only sections are shared with every other process
+ * running the same executable, so a fault on one that another process has
+ * already brought in only maps it.
+ *
+ * <p>
+ * A forked process shares its parent's resident pages read-only, and the
+ * first of them to write a page gets its own copy of it.
  */
 public class VMProcess extends UserProcess {
     /**
@@ -14,40 +34,279 @@ public class VMProcess extends UserProcess {
      */
     public VMProcess() {
 	super();
+
+	if (VMKernel.tlb != null) {
+	    savedTLB = new int[Machine.processor().getTLBSize()];
+	    Arrays.fill(savedTLB, -1);
+	}
     }
 
     /**
      * Save the state of this process in preparation for a context switch.
-     * Called by <tt>UThread.saveState()</tt>.
+     * Called by <tt>UThread.saveState()</tt>. Copies the used and dirty bits
+     * of the TLB back to the page table, and remembers the pages it maps.
      */
     public void saveState() {
 	super.saveState();
+
+	if (VMKernel.tlb != null)
+	    VMKernel.tlb.save(this);
     }
 
     /**
      * Restore the state of this process after a context switch. Called by
-     * <tt>UThread.restoreState()</tt>.
+     * <tt>UThread.restoreState()</tt>. With a TLB, reloads the pages it mapped
+     * when this process was switched out; other pages are refilled from the
+     * page table on each miss.
      */
     public void restoreState() {
-	super.restoreState();
+	if (VMKernel.tlb != null)
+	    VMKernel.tlb.restore(this);
+	else
+	    super.restoreState();
     }
 
     /**
      * Initializes page tables for this process so that the executable can be
-     * demand-paged.
+     * demand-paged. Every page starts out invalid, and remembers the section
+     * it must be loaded from, if any.
      *
      * @return	<tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-	return super.loadSections();
+	pageTable = new TranslationEntry[numPages];
+	pageSections = new CoffSection[numPages];
+	swapPages = new int[numPages];
+	sharedPages = new VMKernel.SharedPage[numPages];
+	coffUsers = new SharedCount();
+
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    pageTable[vpn] = new TranslationEntry(vpn, 0, false, false, false, false);
+	    swapPages[vpn] = -1;
+	}
+
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+
+	    Lib.debug(dbgProcess, "\tdeferring " + section.getName()
+		      + " section (" + section.getLength() + " pages)");
+
+	    for (int i=0; i<section.getLength(); i++) {
+		int vpn = section.getFirstVPN()+i;
+
+		pageSections[vpn] = section;
+		pageTable[vpn].readOnly = section.isReadOnly();
+	    }
+	}
+
+	VMKernel kernel = (VMKernel) Kernel.kernel;
+
+	kernel.lockMemory();
+	text = kernel.attachText(this, executableKey, numPages);
+	kernel.unlockMemory();
+
+	return true;
     }
 
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
-	super.unloadSections();
-    }    
+	VMKernel kernel = (VMKernel) Kernel.kernel;
+
+	kernel.lockMemory();
+
+	if (VMKernel.tlb != null)
+	    VMKernel.tlb.flush(this);
+
+	for (int vpn=0; vpn<pageTable.length; vpn++) {
+	    if (pageTable[vpn].valid) {
+		pageTable[vpn].valid = false;
+
+		if (sharedPages[vpn] != null) {
+		    kernel.detachSharedPage(this, sharedPages[vpn]);
+		    sharedPages[vpn] = null;
+		}
+		// other read-only pages belong to the shared text
+		else if (!pageTable[vpn].readOnly)
+		    kernel.freePage(pageTable[vpn].ppn);
+	    }
+	    if (swapPages[vpn] != -1) {
+		kernel.freeSwapPage(swapPages[vpn]);
+		swapPages[vpn] = -1;
+	    }
+	}
+
+	kernel.detachText(this, text);
+
+	boolean lastUser = (--coffUsers.count == 0);
+
+	kernel.unlockMemory();
+
+	Lib.debug(dbgVM, "process " + PID + ": " + numTLBMisses + " TLB misses");
+
+	if (lastUser)
+	    coff.close();
+    }
+
+    /**
+     * Give the specified child, forked from this process, the same address
+     * space as this process. Each resident writable page becomes a
+     * <tt>VMKernel.SharedPage</tt>, mapped read-only by both processes until
+     * one of them writes it and gets its own copy with
+     * <tt>copySharedPage()</tt>. The child also shares this process's swap
+     * pages: each process reads a page it has not changed from the same swap
+     * page, and a page written out again goes to a swap page of its own.
+     * Pages never written are loaded by the child from the executable, or
+     * zero-filled, as usual.
+     *
+     * @param	child	the new process.
+     */
+    protected void forkSections(UserProcess child) {
+	VMProcess process = (VMProcess) child;
+	VMKernel kernel = (VMKernel) Kernel.kernel;
+
+	kernel.lockMemory();
+
+	// the TLB must not keep mapping the shared pages writable
+	if (VMKernel.tlb != null)
+	    VMKernel.tlb.flush(this);
+
+	process.coff = coff;
+	process.coffUsers = coffUsers;
+	coffUsers.count++;
+
+	process.text = kernel.attachText(process, executableKey, numPages);
+
+	process.pageSections = pageSections;
+	process.pageTable = new TranslationEntry[numPages];
+	process.swapPages = new int[numPages];
+	process.sharedPages = new VMKernel.SharedPage[numPages];
+
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    TranslationEntry entry = pageTable[vpn];
+
+	    process.pageTable[vpn] =
+		new TranslationEntry(vpn, 0, false, entry.readOnly, false, false);
+
+	    process.swapPages[vpn] = swapPages[vpn];
+	    if (swapPages[vpn] != -1)
+		kernel.shareSwapPage(swapPages[vpn]);
+
+	    // the child maps text pages from the shared text, as usual
+	    if (!entry.valid || (entry.readOnly && sharedPages[vpn] == null))
+		continue;
+
+	    if (sharedPages[vpn] == null) {
+		Lib.debug(dbgVM, "\tsharing vpn " + vpn + " for fork");
+		sharedPages[vpn] = kernel.sharePage(this, vpn, entry.ppn, entry.dirty);
+		entry.readOnly = true;
+		entry.dirty = false;
+	    }
+
+	    kernel.attachSharedPage(process, sharedPages[vpn]);
+	    process.sharedPages[vpn] = sharedPages[vpn];
+
+	    process.pageTable[vpn].ppn = entry.ppn;
+	    process.pageTable[vpn].readOnly = true;
+	    process.pageTable[vpn].valid = true;
+	}
+
+	kernel.unlockMemory();
+    }
+
+    /**
+     * Return the page table entry through which the kernel can access the
+     * specified virtual page, bringing the page in first if it is not
+     * resident, and copying it first if it is shared and will be written.
+     *
+     * @param	vpn	the virtual page to access.
+     * @param	writing	<tt>true</tt> if the page will be written.
+     * @return	a valid entry for the page, or <tt>null</tt>.
+     */
+    protected TranslationEntry translate(int vpn, boolean writing) {
+	if (pageTable != null && vpn >= 0 && vpn < pageTable.length) {
+	    TranslationEntry entry = pageTable[vpn];
+
+	    if (!(writing && isTextPage(vpn))) {
+		VMKernel kernel = (VMKernel) Kernel.kernel;
+		kernel.traceReference(this, vpn, writing);
+
+		if (entry.valid)
+		    kernel.pageHit(entry.ppn);
+
+		// another process may evict the page before this one runs again
+		while (!entry.valid || (writing && entry.readOnly)) {
+		    if (!entry.valid)
+			pageIn(vpn);
+		    else
+			copySharedPage(vpn);
+		}
+	    }
+	}
+
+	return super.translate(vpn, writing);
+    }
+
+    protected void pinPage(TranslationEntry entry) {
+	((VMKernel) Kernel.kernel).pinPage(entry.ppn);
+    }
+
+    protected void unpinPage(TranslationEntry entry) {
+	((VMKernel) Kernel.kernel).unpinPage(entry.ppn);
+    }
+
+    /**
+     * Give this process its own copy of a page it shares with a process it
+     * forked or was forked from, making it writable. May block, so the page
+     * may be evicted by the time this returns.
+     *
+     * @param	vpn	the page to copy.
+     * @return	<tt>false</tt> if the page belongs to the executable's text,
+     *		and can never be written.
+     */
+    protected boolean copySharedPage(int vpn) {
+	if (pageTable == null || vpn < 0 || vpn >= pageTable.length || isTextPage(vpn))
+	    return false;
+
+	VMKernel kernel = (VMKernel) Kernel.kernel;
+	TranslationEntry entry = pageTable[vpn];
+
+	kernel.lockMemory();
+
+	// the page may have been evicted, and unshared, while this waited
+	if (entry.valid && sharedPages[vpn] != null) {
+	    VMKernel.SharedPage page = sharedPages[vpn];
+
+	    Lib.debug(dbgVM, "\tcopying shared vpn " + vpn);
+	    int ppn = kernel.copySharedPage(this, page);
+
+	    if (VMKernel.tlb != null)
+		VMKernel.tlb.invalidate(this, vpn);
+
+	    sharedPages[vpn] = null;
+	    entry.ppn = ppn;
+	    entry.readOnly = false;
+	    entry.used = true;
+	    entry.dirty = page.isDirty();
+	}
+
+	kernel.unlockMemory();
+
+	return true;
+    }
+
+    /**
+     * Handle a syscall. A halt syscall by the root process first writes out
+     * the page reference trace and removes the swap file, since the machine
+     * halts without terminating the kernel.
+     */
+    public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+	if (syscall == syscallHalt && PID == ROOT_PID)
+	    ((VMKernel) Kernel.kernel).closeFiles();
+
+	return super.handleSyscall(syscall, a0, a1, a2, a3);
+    }
 
     /**
      * Handle a user exception. Called by
@@ -61,12 +320,315 @@ public class VMProcess extends UserProcess {
 	Processor processor = Machine.processor();
 
 	switch (cause) {
+	case Processor.exceptionPageFault:
+	case Processor.exceptionTLBMiss:
+	    // the address may not be mapped
+	    if (!handlePageFault(processor.readRegister(Processor.regBadVAddr)))
+		super.handleException(cause);
+	    break;
+
 	default:
 	    super.handleException(cause);
 	    break;
 	}
     }
-	
+
+    /**
+     * Handle a page fault or TLB miss at the specified virtual address, by
+     * bringing the page in if it is not resident, and then loading its
+     * translation into the TLB if the processor has one.
+     *
+     * @param	vaddr	the virtual address that caused the exception.
+     * @return	<tt>true</tt> if the faulting instruction can be restarted.
+     */
+    private boolean handlePageFault(int vaddr) {
+	int vpn = Processor.pageFromAddress(vaddr);
+
+	if (vpn >= numPages)
+	    return false;
+
+	VMKernel kernel = (VMKernel) Kernel.kernel;
+	kernel.traceReference(this, vpn, false);
+
+	if (pageTable[vpn].valid)
+	    kernel.pageHit(pageTable[vpn].ppn);
+	else
+	    pageIn(vpn);
+
+	// if the page was evicted again already, the instruction faults again
+	if (VMKernel.tlb != null && pageTable[vpn].valid)
+	    VMKernel.tlb.load(this, pageTable[vpn]);
+
+	return true;
+    }
+
+    /**
+     * Bring the specified page into physical memory, evicting another page if
+     * necessary: read it back from the swap file if it was written there,
+     * load it from its COFF section, or zero-fill it if it is a stack or
+     * argument page. A read-only page is just mapped if another process
+     * running this executable has it resident. May block, so the page may be
+     * evicted again by the time this returns.
+     *
+     * @param	vpn	the page to bring in.
+     */
+    private void pageIn(int vpn) {
+	VMKernel kernel = (VMKernel) Kernel.kernel;
+	TranslationEntry entry = pageTable[vpn];
+
+	kernel.lockMemory();
+
+	if (!entry.valid && entry.readOnly) {
+	    int ppn = kernel.getTextPage(text, vpn);
+
+	    if (ppn == -1) {
+		CoffSection section = pageSections[vpn];
+
+		ppn = kernel.allocateTextPage(text, vpn);
+		if (ppn != -1) {
+		    Lib.debug(dbgVM, "\tloading vpn " + vpn + " from " + section.getName());
+		    section.loadPage(vpn - section.getFirstVPN(), ppn);
+		}
+		else {
+		    // another process loaded it while this one waited
+		    ppn = kernel.getTextPage(text, vpn);
+		}
+	    }
+	    else {
+		Lib.debug(dbgVM, "\tsharing vpn " + vpn + " in ppn " + ppn);
+		kernel.pageHit(ppn);
+	    }
+
+	    entry.ppn = ppn;
+	    entry.used = true;
+	    entry.dirty = false;
+	    entry.valid = true;
+	}
+	else if (!entry.valid) {
+	    int ppn = kernel.allocatePage(this, vpn);
+
+	    CoffSection section = pageSections[vpn];
+	    if (swapPages[vpn] != -1) {
+		Lib.debug(dbgVM, "\tswapping in vpn " + vpn);
+		kernel.readSwapPage(swapPages[vpn], ppn);
+	    }
+	    else if (section != null) {
+		Lib.debug(dbgVM, "\tloading vpn " + vpn + " from " + section.getName());
+		section.loadPage(vpn - section.getFirstVPN(), ppn);
+	    }
+	    else {
+		Lib.debug(dbgVM, "\tzero-filling vpn " + vpn);
+		Arrays.fill(Machine.processor().getMemory(),
+			    ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
+	    }
+
+	    // a page about to be used should not be the next victim
+	    entry.ppn = ppn;
+	    entry.used = true;
+	    entry.dirty = false;
+	    entry.valid = true;
+	}
+
+	kernel.unlockMemory();
+    }
+
+    /**
+     * Give up the physical page holding the specified page, writing the page
+     * to the swap file first if it has changed since it was last brought in.
+     * Called by <tt>VMKernel</tt> with the memory lock held; the TLB must not
+     * hold the page.
+     *
+     * @param	vpn	the page to evict.
+     */
+    void pageOut(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	Lib.assertTrue(entry.valid);
+
+	// invalidate first, so the page cannot change while it is written
+	entry.valid = false;
+
+	if (entry.dirty)
+	    writeSwapPage(vpn);
+    }
+
+    /**
+     * Write the specified resident page to its swap page, allocating one if
+     * it has none, or if it shares its swap page with a forked process. The
+     * memory lock must be held.
+     *
+     * @param	vpn	the page to write.
+     */
+    private void writeSwapPage(int vpn) {
+	VMKernel kernel = (VMKernel) Kernel.kernel;
+
+	if (swapPages[vpn] != -1 && kernel.isSwapPageShared(swapPages[vpn])) {
+	    kernel.freeSwapPage(swapPages[vpn]);
+	    swapPages[vpn] = -1;
+	}
+
+	if (swapPages[vpn] == -1)
+	    swapPages[vpn] = kernel.allocateSwapPage();
+	kernel.writeSwapPage(swapPages[vpn], pageTable[vpn].ppn);
+    }
+
+    /**
+     * Stop mapping the specified read-only page, if this process maps it to
+     * the specified physical page. Called by <tt>VMKernel</tt> with the
+     * memory lock held, when it evicts the page; the TLB must not hold the
+     * page.
+     *
+     * @param	vpn	the page.
+     * @param	ppn	the physical page being evicted.
+     */
+    void unmapPage(int vpn, int ppn) {
+	TranslationEntry entry = pageTable[vpn];
+
+	if (entry.valid && entry.ppn == ppn)
+	    entry.valid = false;
+    }
+
+    /**
+     * Stop mapping the specified shared page. Called by <tt>VMKernel</tt>
+     * with the memory lock held, when it evicts the page; the TLB must not
+     * hold the page. The page will be brought in as a page of this process
+     * alone.
+     *
+     * @param	vpn	the page.
+     * @param	spn	the swap page the page is being written to, or -1 if
+     *			it has not changed since it was brought in.
+     */
+    void unmapSharedPage(int vpn, int spn) {
+	TranslationEntry entry = pageTable[vpn];
+	Lib.assertTrue(entry.valid && sharedPages[vpn] != null);
+
+	entry.valid = false;
+	entry.readOnly = false;
+	sharedPages[vpn] = null;
+
+	if (spn != -1) {
+	    VMKernel kernel = (VMKernel) Kernel.kernel;
+
+	    if (swapPages[vpn] != -1)
+		kernel.freeSwapPage(swapPages[vpn]);
+	    kernel.shareSwapPage(spn);
+	    swapPages[vpn] = spn;
+	}
+    }
+
+    /**
+     * Test whether the specified page belongs to a read-only COFF section,
+     * and so to the shared text.
+     *
+     * @param	vpn	the page.
+     * @return	<tt>true</tt> if the page can never be written.
+     */
+    private boolean isTextPage(int vpn) {
+	return pageSections[vpn] != null && pageSections[vpn].isReadOnly();
+    }
+
+    /**
+     * Return the page table entry of the specified page, valid or not.
+     *
+     * @param	vpn	the page.
+     * @return	the page's entry, or <tt>null</tt> if there is no such page.
+     */
+    TranslationEntry getEntry(int vpn) {
+	if (pageTable == null || vpn < 0 || vpn >= pageTable.length)
+	    return null;
+
+	return pageTable[vpn];
+    }
+
+    /**
+     * Return the number of TLB misses this process has taken.
+     *
+     * @return	the number of TLB misses.
+     */
+    public int getTLBMisses() {
+	return numTLBMisses;
+    }
+
+    /**
+     * Return this process's ID.
+     */
+    int getPID() {
+	return PID;
+    }
+
+    /**
+     * Test whether the specified resident page is dirty.
+     *
+     * @param	vpn	the page.
+     * @return	<tt>true</tt> if the page is dirty.
+     */
+    boolean isDirty(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	Lib.assertTrue(entry.valid);
+
+	return entry.dirty;
+    }
+
+    /**
+     * Clear the used bit of the specified resident page.
+     *
+     * @param	vpn	the page.
+     * @return	<tt>true</tt> if the used bit was set.
+     */
+    boolean clearUsed(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	Lib.assertTrue(entry.valid);
+
+	boolean used = entry.used;
+	entry.used = false;
+	return used;
+    }
+
+    /**
+     * Clear the used bit of the specified read-only page, if this process
+     * maps it to the specified physical page.
+     *
+     * @param	vpn	the page.
+     * @param	ppn	the physical page.
+     * @return	<tt>true</tt> if the page is mapped and its used bit was set.
+     */
+    boolean clearUsed(int vpn, int ppn) {
+	TranslationEntry entry = pageTable[vpn];
+	if (!entry.valid || entry.ppn != ppn)
+	    return false;
+
+	boolean used = entry.used;
+	entry.used = false;
+	return used;
+    }
+
+    /**
+     * The COFF section each page is loaded from, or <tt>null</tt> for stack
+     * and argument pages.
+     */
+    private CoffSection[] pageSections;
+    /** The swap page each page was last written to, or -1. */
+    private int[] swapPages;
+    /** The shared page each page maps, or <tt>null</tt> if it maps its own. */
+    private VMKernel.SharedPage[] sharedPages;
+    /** The number of processes sharing <tt>coff</tt>, forked from one another. */
+    private SharedCount coffUsers;
+    /** The read-only pages, shared with other processes running the executable. */
+    private VMKernel.SharedText text;
+
+    /** The pages the TLB mapped when this process was last switched out. */
+    int[] savedTLB;
+    /** The number of TLB misses this process has taken. */
+    int numTLBMisses = 0;
+
+    /**
+     * A count shared by several processes.
+     */
+    private static class SharedCount {
+	int count = 1;
+    }
+
+    private static final int syscallHalt = 0;
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';
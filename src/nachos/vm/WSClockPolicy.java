@@ -0,0 +1,91 @@
+package nachos.vm;
+
+/**
+ * The WSClock replacement policy, which approximates the working set
+ * algorithm with a clock.
+ *
+ * <p>
+ * Each physical page remembers when its page was last seen used. A hand
+ * sweeps the physical pages; a page whose used bit is set is stamped with the
+ * current time and skipped. A page not used for more than the working set
+ * window is outside the working set, and is evicted at once if it is clean.
+ * Dirty pages outside the working set cost a write, so they are only evicted
+ * if a whole sweep finds no clean one. If every page is in the working set,
+ * the clean page used longest ago is evicted, or failing that, the dirty one.
+ *
+ * <p>
+ * Time is measured in page references, for all processes together, and the
+ * window is twice the number of physical pages.
+ */
+public class WSClockPolicy implements PageReplacementPolicy {
+    /**
+     * Allocate a new WSClock policy.
+     */
+    public WSClockPolicy() {
+    }
+
+    public void initialize(Frames frames) {
+	this.frames = frames;
+
+	lastUsed = new long[frames.getNumFrames()];
+	window = 2*frames.getNumFrames();
+    }
+
+    public void pageLoaded(int ppn, long page) {
+	lastUsed[ppn] = frames.getTime();
+    }
+
+    public void pageReferenced(int ppn) {
+	lastUsed[ppn] = frames.getTime();
+    }
+
+    public void pageFreed(int ppn) {
+    }
+
+    public int chooseVictim(long page) {
+	int numFrames = frames.getNumFrames();
+	long time = frames.getTime();
+
+	int oldDirty = -1, oldestClean = -1, oldest = -1;
+
+	for (int scanned=0; scanned<numFrames; scanned++) {
+	    int ppn = hand;
+	    hand = (hand+1) % numFrames;
+
+	    if (!frames.isEvictable(ppn))
+		continue;
+
+	    if (frames.clearUsed(ppn))
+		lastUsed[ppn] = time;
+
+	    boolean dirty = frames.isDirty(ppn);
+
+	    if (time - lastUsed[ppn] > window) {
+		if (!dirty)
+		    return ppn;
+		if (oldDirty == -1)
+		    oldDirty = ppn;
+	    }
+
+	    if (!dirty && (oldestClean == -1 || lastUsed[ppn] < lastUsed[oldestClean]))
+		oldestClean = ppn;
+	    if (oldest == -1 || lastUsed[ppn] < lastUsed[oldest])
+		oldest = ppn;
+	}
+
+	if (oldDirty != -1)
+	    return oldDirty;
+	else if (oldestClean != -1)
+	    return oldestClean;
+	else
+	    return oldest;
+    }
+
+    private Frames frames;
+    /** The time each physical page was last seen used. */
+    private long[] lastUsed;
+    /** The working set window, in page references. */
+    private long window;
+    /** The next physical page the hand will consider. */
+    private int hand = 0;
+}